@@ -0,0 +1,107 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Reading a GATT table definition: createServicesFromJSON parses the JSON text
+// Cordova passes in and builds the schema with GattSchema.fromJSON, while
+// restoreServices decodes the compiled binary form of the same table.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GattSchemaBenchmark {
+
+    @Param({"1", "10", "50"})
+    int services;
+
+    // characteristics in each service
+    @Param({"8"})
+    int characteristics;
+
+    String json;
+    byte[] compiled;
+
+    @Setup
+    public void setUp() throws JSONException {
+        JSONArray table = new JSONArray();
+        for (int i = 0; i < services; i++) {
+            JSONObject service = new JSONObject();
+            service.put("uuid", String.format("6e40%04x-b5a3-f393-e0a9-e50e24dcca9e", i));
+
+            JSONArray characteristicArray = new JSONArray();
+            for (int j = 0; j < characteristics; j++) {
+                JSONObject characteristic = new JSONObject();
+                characteristic.put("uuid", String.format("6e40%04x-b5a3-f393-e0a9-e50e24dcca9e", 0x1000 + i * characteristics + j));
+                characteristic.put("properties", 0x02 | 0x08 | 0x10);
+                characteristic.put("permissions", 0x01 | 0x10);
+                characteristic.put("value", "initial");
+                characteristic.put("conflateNotifications", j % 2 == 0);
+                if (j % 4 == 0) {
+                    characteristic.put("writeFilter", new JSONObject()
+                            .put("maxLength", 20)
+                            .put("dropDuplicates", true)
+                            .put("rateLimit", new JSONObject().put("perSecond", 10).put("burst", 20)));
+                }
+                characteristic.put("descriptors", new JSONArray()
+                        .put(new JSONObject().put("uuid", "2901").put("value", "Characteristic " + j)));
+                characteristicArray.put(characteristic);
+            }
+            service.put("characteristics", characteristicArray);
+            table.put(service);
+        }
+        json = table.toString();
+
+        List<GattSchema.Service> schema = parseJSON();
+        compiled = GattSchema.encode(schema);
+    }
+
+    @Benchmark
+    public List<GattSchema.Service> parseJSON() throws JSONException {
+        JSONArray table = new JSONArray(json);
+        List<GattSchema.Service> schema = new ArrayList<>(table.length());
+        for (int i = 0; i < table.length(); i++) {
+            schema.add(GattSchema.fromJSON(table.getJSONObject(i)));
+        }
+        return schema;
+    }
+
+    @Benchmark
+    public List<GattSchema.Service> decodeSchema() {
+        return GattSchema.decode(ByteBuffer.wrap(compiled));
+    }
+
+}
@@ -0,0 +1,109 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// One characteristic update fanned out to every subscribed central, through
+// NotificationFanout, NotificationScheduler and the simulated transport, until
+// each central has acknowledged it. Centrals acknowledge with no latency so
+// only the plugin's own work is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotifyFanoutBenchmark {
+
+    private static final UUID CHARACTERISTIC = UUIDHelper.uuidFromString("ff11");
+
+    @Param({"1", "10", "50"})
+    int centrals;
+
+    @Param({"false", "true"})
+    boolean conflate;
+
+    private Simulation simulation;
+    private NotificationScheduler<VirtualCentral, UUID> scheduler;
+    private NotificationFanout<VirtualCentral, UUID> fanout;
+    private byte[] value;
+    private long sent;
+
+    private final NotificationQueue.Callback<UUID> callback = new NotificationQueue.Callback<UUID>() {
+        @Override
+        public void onSent(String address, NotificationQueue.Notification<UUID> notification) {
+            sent++;
+        }
+
+        @Override
+        public void onFailed(String address, NotificationQueue.Notification<UUID> notification, String reason) {
+            throw new IllegalStateException(address + " " + reason);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        simulation = new Simulation();
+        Random random = new Random(1);
+        SimulatedGattTransport<UUID> transport = new SimulatedGattTransport<>(simulation, random);
+        scheduler = new NotificationScheduler<>(transport, 64);
+        transport.setScheduler(scheduler);
+
+        SubscriptionIndex<UUID, VirtualCentral> subscriptions = new SubscriptionIndex<>();
+        for (int i = 0; i < centrals; i++) {
+            VirtualCentral central = new VirtualCentral(String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF), 185, 0, 0, 0);
+            central.connected = true;
+            subscriptions.subscribe(CHARACTERISTIC, central, SubscriptionIndex.NOTIFY);
+        }
+
+        fanout = new NotificationFanout<>(subscriptions, new NotificationFanout.Listener<VirtualCentral, UUID>() {
+            @Override
+            public void onConflated(VirtualCentral central, NotificationQueue.Notification<UUID> replaced) {
+            }
+
+            @Override
+            public void onDropped(VirtualCentral central, NotificationQueue.Notification<UUID> notification, NotificationQueue<UUID> queue) {
+                throw new IllegalStateException("dropped");
+            }
+        });
+        fanout.setConflated(CHARACTERISTIC, conflate);
+
+        value = new byte[20];
+        random.nextBytes(value);
+    }
+
+    @Benchmark
+    public long notifySubscribers() {
+        fanout.queue(scheduler, CHARACTERISTIC, value, callback, null);
+        simulation.runUntil(simulation.now());
+        return sent;
+    }
+
+}
@@ -0,0 +1,86 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// UUIDHelper against the String based versions it replaced. Parsing expanded
+// short UUIDs to the Bluetooth base UUID and used UUID.fromString, formatting
+// matched UUID.toString against a regular expression to find 16 bit UUIDs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidParsingBenchmark {
+
+    @Param({"2a37", "6e400002-b5a3-f393-e0a9-e50e24dcca9e"})
+    String uuid;
+
+    UUID parsed;
+
+    @Setup
+    public void setUp() {
+        parsed = UUID.fromString(uuid.length() == 4 ? UUIDHelper.UUID_BASE.replace("XXXX", uuid) : uuid);
+    }
+
+    @Benchmark
+    public UUID uuidHelper() {
+        return UUIDHelper.uuidFromString(uuid);
+    }
+
+    @Benchmark
+    public UUID fromString() {
+        String expanded = uuid;
+        if (expanded.length() == 4) {
+            expanded = UUIDHelper.UUID_BASE.replace("XXXX", expanded);
+        }
+        return UUID.fromString(expanded);
+    }
+
+    @Benchmark
+    public String uuidToString() {
+        return UUIDHelper.uuidToString(parsed);
+    }
+
+    @Benchmark
+    public String regexToString() {
+        String longUUID = parsed.toString();
+        Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = pattern.matcher(longUUID);
+        if (matcher.matches()) {
+            return matcher.group(1);
+        } else {
+            return longUUID;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Encoding a batch of write events for JavaScript, as WriteEventBatcher hands them
+// to the plugin. The bridged versions include what Cordova does with the result
+// before it reaches the WebView: binary results are sent Base64 encoded and JSON
+// results as a string. The JSON matches BLEPeripheralPlugin.writeEventToJSON.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteEventEncodingBenchmark {
+
+    @Param({"1", "16", "128"})
+    int events;
+
+    @Param({"20", "244"})
+    int size;
+
+    List<WriteEvent> batch;
+
+    @Setup
+    public void setUp() {
+        UUID service = UUIDHelper.uuidFromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+        UUID characteristic = UUIDHelper.uuidFromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+        Random random = new Random(1);
+
+        batch = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            byte[] value = new byte[size];
+            random.nextBytes(value);
+            batch.add(new WriteEvent(service, characteristic, value, System.nanoTime()));
+        }
+    }
+
+    @Benchmark
+    public byte[] binaryFrame() {
+        return WriteEvent.encodeFrame(batch);
+    }
+
+    @Benchmark
+    public String binaryFrameBridged() {
+        return Base64.getEncoder().encodeToString(WriteEvent.encodeFrame(batch));
+    }
+
+    @Benchmark
+    public String jsonBridged() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (WriteEvent event : batch) {
+            JSONObject value = new JSONObject();
+            value.put("CDVType", "ArrayBuffer");
+            value.put("data", Base64.getEncoder().encodeToString(event.value));
+
+            JSONObject message = new JSONObject();
+            message.put("service", event.service.toString());
+            message.put("characteristic", event.characteristic.toString());
+            message.put("value", value);
+            array.put(message);
+        }
+        return array.toString();
+    }
+
+}
@@ -0,0 +1,166 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Splits an AdvertisingProfile between the advertisement and the scan response.
+// Android fails the whole advertisement if either is too long, so the fields are
+// placed in priority order: service UUIDs, service data, manufacturer data,
+// TX power, then the name, which goes in the scan response when it fits there.
+// Fields that don't fit anywhere are dropped and reported.
+class AdvertisementPacker {
+
+    // legacy advertisements and scan responses are 31 bytes each
+    static final int LEGACY_LENGTH = 31;
+
+    // connectable advertisements start with a flags field
+    static final int FLAGS_LENGTH = 3;
+
+    // each field starts with a length and a type byte
+    private static final int FIELD_HEADER = 2;
+    private static final int TX_POWER_LENGTH = FIELD_HEADER + 1;
+    private static final int COMPANY_ID_LENGTH = 2;
+
+    static class Packet {
+        final int capacity;
+        int length;
+
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final Map<UUID, byte[]> serviceData = new LinkedHashMap<>();
+        final Map<Integer, byte[]> manufacturerData = new LinkedHashMap<>();
+        boolean includeName;
+        boolean includeTxPower;
+
+        Packet(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean isEmpty() {
+            return serviceUuids.isEmpty() && serviceData.isEmpty() && manufacturerData.isEmpty()
+                    && !includeName && !includeTxPower;
+        }
+
+        // UUIDs of the same size share one field
+        private int serviceUuidLength(UUID uuid) {
+            int size = UUIDHelper.uuidLength(uuid);
+            for (UUID other : serviceUuids) {
+                if (UUIDHelper.uuidLength(other) == size) {
+                    return size;
+                }
+            }
+            return FIELD_HEADER + size;
+        }
+
+        private boolean fits(int fieldLength) {
+            return length + fieldLength <= capacity;
+        }
+    }
+
+    static class Result {
+        final Packet advertisement;
+        final Packet scanResponse; // null when there isn't one
+        final List<String> dropped = new ArrayList<>();
+
+        Result(Packet advertisement, Packet scanResponse) {
+            this.advertisement = advertisement;
+            this.scanResponse = scanResponse;
+        }
+    }
+
+    // maxLength is LEGACY_LENGTH or the controller's maximum for extended advertising,
+    // which is used without a scan response
+    static Result pack(AdvertisingProfile profile, int nameLength, int maxLength, boolean scanResponse) {
+        Packet advertisement = new Packet(maxLength - (profile.connectable ? FLAGS_LENGTH : 0));
+        Result result = new Result(advertisement, scanResponse ? new Packet(maxLength) : null);
+
+        for (UUID uuid : profile.serviceUuids) {
+            // the length depends on the UUIDs already in each packet
+            Packet packet = null;
+            if (advertisement.fits(advertisement.serviceUuidLength(uuid))) {
+                packet = advertisement;
+            } else if (result.scanResponse != null && result.scanResponse.fits(result.scanResponse.serviceUuidLength(uuid))) {
+                packet = result.scanResponse;
+            }
+            if (packet == null) {
+                result.dropped.add("service UUID " + UUIDHelper.uuidToString(uuid));
+            } else {
+                packet.length += packet.serviceUuidLength(uuid);
+                packet.serviceUuids.add(uuid);
+            }
+        }
+
+        for (Map.Entry<UUID, byte[]> entry : profile.serviceData.entrySet()) {
+            int length = FIELD_HEADER + UUIDHelper.uuidLength(entry.getKey()) + entry.getValue().length;
+            Packet packet = place(result, length, false);
+            if (packet == null) {
+                result.dropped.add("service data " + UUIDHelper.uuidToString(entry.getKey()) + " (" + length + " bytes)");
+            } else {
+                packet.serviceData.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<Integer, byte[]> entry : profile.manufacturerData.entrySet()) {
+            int length = FIELD_HEADER + COMPANY_ID_LENGTH + entry.getValue().length;
+            Packet packet = place(result, length, false);
+            if (packet == null) {
+                result.dropped.add(String.format("manufacturer data 0x%04x (%d bytes)", entry.getKey(), length));
+            } else {
+                packet.manufacturerData.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (profile.includeTxPower) {
+            Packet packet = place(result, TX_POWER_LENGTH, false);
+            if (packet == null) {
+                result.dropped.add("TX power (" + TX_POWER_LENGTH + " bytes)");
+            } else {
+                packet.includeTxPower = true;
+            }
+        }
+
+        if (profile.includeName && nameLength > 0) {
+            int length = FIELD_HEADER + nameLength;
+            Packet packet = place(result, length, true);
+            if (packet == null) {
+                result.dropped.add("name (" + length + " bytes)");
+            } else {
+                packet.includeName = true;
+            }
+        }
+
+        return result;
+    }
+
+    // reserves the length in the preferred packet, or the other one, null if neither has room
+    private static Packet place(Result result, int length, boolean preferScanResponse) {
+        Packet first = preferScanResponse ? result.scanResponse : result.advertisement;
+        Packet second = preferScanResponse ? result.advertisement : result.scanResponse;
+        if (first != null && first.fits(length)) {
+            first.length += length;
+            return first;
+        }
+        if (second != null && second.fits(length)) {
+            second.length += length;
+            return second;
+        }
+        return null;
+    }
+
+}
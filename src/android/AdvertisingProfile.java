@@ -0,0 +1,86 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// What to advertise and how. The presets trade discovery latency against
+// battery, and any field can be changed after picking one.
+class AdvertisingProfile {
+
+    // same values as AdvertiseSettings.ADVERTISE_MODE_*
+    static final int MODE_LOW_POWER = 0;
+    static final int MODE_BALANCED = 1;
+    static final int MODE_LOW_LATENCY = 2;
+
+    // same values as AdvertiseSettings.ADVERTISE_TX_POWER_*
+    static final int TX_POWER_ULTRA_LOW = 0;
+    static final int TX_POWER_LOW = 1;
+    static final int TX_POWER_MEDIUM = 2;
+    static final int TX_POWER_HIGH = 3;
+
+    // legacy advertising stops after at most 180 seconds
+    static final int MAX_TIMEOUT_MILLIS = 180000;
+
+    int mode = MODE_LOW_LATENCY;
+    int txPower = TX_POWER_HIGH;
+    boolean connectable = true;
+    int timeoutMillis; // 0 advertises until stopped
+    int intervalMillis; // extended advertising only, 0 uses the interval for the mode
+    boolean includeName = true;
+    boolean includeTxPower;
+    boolean extended;
+
+    final List<UUID> serviceUuids = new ArrayList<>();
+    final Map<UUID, byte[]> serviceData = new LinkedHashMap<>();
+    final Map<Integer, byte[]> manufacturerData = new LinkedHashMap<>();
+
+    // fastDiscovery, balanced or lowPower, null for an unknown name
+    static AdvertisingProfile preset(String name) {
+        AdvertisingProfile profile = new AdvertisingProfile();
+        if (name.equals("fastDiscovery")) {
+            return profile;
+        } else if (name.equals("balanced")) {
+            profile.mode = MODE_BALANCED;
+            profile.txPower = TX_POWER_MEDIUM;
+            return profile;
+        } else if (name.equals("lowPower")) {
+            profile.mode = MODE_LOW_POWER;
+            profile.txPower = TX_POWER_LOW;
+            return profile;
+        }
+        return null;
+    }
+
+    // the intervals Android uses for the legacy modes
+    int getIntervalMillis() {
+        if (intervalMillis > 0) {
+            return intervalMillis;
+        }
+        switch (mode) {
+            case MODE_LOW_LATENCY:
+                return 100;
+            case MODE_BALANCED:
+                return 250;
+            default:
+                return 1000;
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+
+class AndroidGattTransport implements GattTransport<BluetoothDevice, BluetoothGattCharacteristic> {
+
+    private final BluetoothGattServer gattServer;
+
+    AndroidGattTransport(BluetoothGattServer gattServer) {
+        this.gattServer = gattServer;
+    }
+
+    @Override
+    public String getAddress(BluetoothDevice device) {
+        return device.getAddress();
+    }
+
+    @Override
+    public boolean notify(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        // notifyCharacteristicChanged sends the current value of the characteristic
+        // so swap in the queued value, then restore the latest value for reads
+        byte[] currentValue = characteristic.getValue();
+        characteristic.setValue(value);
+        boolean started = gattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+        characteristic.setValue(currentValue);
+        return started;
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        return gattServer.sendResponse(device, requestId, status, offset, value);
+    }
+
+}
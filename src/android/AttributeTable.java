@@ -0,0 +1,44 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Arrays;
+
+// Integer handles for services and characteristics. A handle is an index into
+// a flat array, so looking up an attribute by handle doesn't parse a UUID
+// string or hash anything. Handles are never reused.
+class AttributeTable<T> {
+
+    private Object[] attributes = new Object[16];
+    private int count;
+
+    int add(T attribute) {
+        if (count == attributes.length) {
+            attributes = Arrays.copyOf(attributes, count * 2);
+        }
+        attributes[count] = attribute;
+        return count++;
+    }
+
+    // returns null for an invalid handle
+    @SuppressWarnings("unchecked")
+    T get(int handle) {
+        if (handle < 0 || handle >= count) {
+            return null;
+        }
+        return (T) attributes[handle];
+    }
+
+}
@@ -24,16 +24,26 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.AssetFileDescriptor;
 import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Base64;
 import android.util.Log;
@@ -49,10 +59,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -61,12 +82,43 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
     // actions
     private static final String CREATE_SERVICE = "createService";
     private static final String CREATE_SERVICE_FROM_JSON = "createServiceFromJSON";
+    private static final String CREATE_SERVICES_FROM_JSON = "createServicesFromJSON";
+    private static final String COMPILE_SERVICES = "compileServices";
+    private static final String RESTORE_SERVICES = "restoreServices";
     private static final String ADD_CHARACTERISTIC = "addCharacteristic";
     private static final String PUBLISH_SERVICE = "publishService";
     private static final String START_ADVERTISING = "startAdvertising";
+    private static final String STOP_ADVERTISING = "stopAdvertising";
     private static final String SET_CHARACTERISTIC_VALUE = "setCharacteristicValue";
+    private static final String SET_CHARACTERISTIC_VALUES = "setCharacteristicValues";
+    private static final String STREAM_CHARACTERISTIC_VALUE = "streamCharacteristicValue";
+    private static final String SET_CHARACTERISTIC_VALUE_BY_HANDLE = "setCharacteristicValueByHandle";
+    private static final String SET_CHARACTERISTIC_READ_VALUE_BY_HANDLE = "setCharacteristicReadValueByHandle";
+    private static final String NOTIFY_CHARACTERISTIC_BY_HANDLE = "notifyCharacteristicByHandle";
+    private static final String GET_NOTIFICATION_QUEUE_STATS = "getNotificationQueueStats";
+    private static final String GET_STATISTICS = "getStatistics";
+    private static final String SET_TRACE = "setTrace";
+    private static final String DUMP_TRACE = "dumpTrace";
+
+    private static final String SET_NOTIFICATION_CONFLATION = "setNotificationConflation";
+    private static final String SET_PREFERRED_PHY = "setPreferredPhy";
+    private static final String SET_CONNECTION_STATE_CHANGED_LISTENER = "setConnectionStateChangedListener";
+    private static final String SET_RECOVERY_LISTENER = "setRecoveryListener";
+
+    private static final String START_L2CAP_SERVER = "startL2capServer";
+    private static final String STOP_L2CAP_SERVER = "stopL2capServer";
+    private static final String SET_L2CAP_LISTENER = "setL2capListener";
+    private static final String L2CAP_SEND = "l2capSend";
+    private static final String L2CAP_ACKNOWLEDGE = "l2capAcknowledge";
+    private static final String L2CAP_CLOSE = "l2capClose";
+    private static final String GET_L2CAP_STATS = "getL2capStats";
 
     private static final String SET_CHARACTERISTIC_VALUE_CHANGED_LISTENER = "setCharacteristicValueChangedListener";
+    private static final String SET_WRITE_REQUEST_BATCHING = "setWriteRequestBatching";
+    private static final String SET_BINARY_WRITE_REQUESTS = "setBinaryWriteRequests";
+    private static final String SET_CHARACTERISTIC_READ_REQUEST_LISTENER = "setCharacteristicReadRequestListener";
+    private static final String SET_DYNAMIC_READ = "setDynamicRead";
+    private static final String RESPOND_TO_READ_REQUEST = "respondToReadRequest";
 
     // 0x2902 https://www.bluetooth.com/specifications/gatt/descriptors
     private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
@@ -75,22 +127,124 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
     // private static final String STOP_STATE_NOTIFICATIONS = "stopStateNotifications";
     private static final String SET_BLUETOOTH_STATE_CHANGED_LISTENER = "setBluetoothStateChangedListener";
 
+    private static final String READY = "ready";
+
     private static final String SETTINGS = "showBluetoothSettings";
     private static final String ENABLE = "enable";
 
     // callbacks
     private CallbackContext enableBluetoothCallback;
     private CallbackContext characteristicValueChangedCallback;
+    private CallbackContext readRequestCallback;
+    private CallbackContext connectionStateCallback;
+    private CallbackContext recoveryCallback;
+    private CallbackContext l2capCallback;
     private CallbackContext advertisingStartedCallback;
 
+    // what the current advertisement left out, reported when it starts
+    private AdvertisementPacker.Result advertisement;
+    private boolean advertisingExtended;
+
+    // the last advertisement started, restarted after Bluetooth is turned back on
+    private AdvertisingProfile advertisingProfile;
+    private String advertisingName;
+
+    // L2CAP channels, restarted with the same settings by recovery
+    private L2capServer l2capServer;
+    private boolean l2capStarted;
+    private boolean l2capSecure;
+    private BluetoothGattCharacteristic l2capPsmCharacteristic;
+
     private static final String TAG = "BLEPeripheral";
     private static final int REQUEST_ENABLE_BLUETOOTH = 17;
 
+    // maximum number of notifications waiting for each device
+    private static final int NOTIFICATION_QUEUE_CAPACITY = 64;
+
+    // ATT MTU before the central negotiates a larger one, notifications carry MTU - 3 bytes
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    // defaults for dynamic reads, JavaScript has to answer well inside the 30 second ATT timeout
+    private static final long DEFAULT_READ_TTL_MILLIS = 0;
+    private static final long DEFAULT_READ_DEADLINE_MILLIS = 2000;
+
+    // restoreServices paths starting with this are read from the app's assets
+    private static final String ASSET_PREFIX = "asset:";
+
+    // delays between attempts to reopen the GATT server, it can fail right after Bluetooth turns on
+    private static final long[] RECOVERY_RETRY_MILLIS = { 100, 200, 400, 800, 1600 };
+
+    // onServiceAdded usually arrives within a few milliseconds
+    private static final long ADD_SERVICE_TIMEOUT_MILLIS = 5000;
+
+    // ATT error for writes over the rate limit, Android doesn't define a constant for it
+    private static final int ATT_INSUFFICIENT_RESOURCES = 0x11;
+
+    // config.xml preference, opens the GATT server when the plugin loads rather than on the first action
+    private static final String EAGER_INIT_PREFERENCE = "BLEPeripheralEagerInit";
+
+    // set up on the event loop by initializeBluetooth
     private BluetoothAdapter bluetoothAdapter;
+    private BluetoothManager bluetoothManager;
     private BluetoothGattServer gattServer;
+    private boolean initialized = false;
+    // Bluetooth was turned off with recovery on, the GATT server is reopened when it's back
+    private boolean gattServerClosed = false;
+    private Runnable recoveryRetry;
+    private long initMillis;
+    private GattTransport<BluetoothDevice, BluetoothGattCharacteristic> transport;
+    private ServicePipeline<BluetoothGattService> servicePipeline;
+
+    // All the peripheral state below is owned by the event loop thread. GATT callbacks
+    // and plugin actions are posted to it, so nothing runs on the binder thread and
+    // the maps don't need locks.
+    private HandlerThread eventLoopThread;
+    private Handler eventLoop;
 
     private Map<UUID, BluetoothGattService> services = new HashMap<>();
-    private Set<BluetoothDevice> registeredDevices = new HashSet<>();
+    // services on the GATT server in the order they were added, re-added by recovery
+    private Set<BluetoothGattService> publishedServices = new LinkedHashSet<>();
+    private AttributeTable<BluetoothGattService> serviceHandles = new AttributeTable<>();
+    private AttributeTable<BluetoothGattCharacteristic> characteristicHandles = new AttributeTable<>();
+    private SubscriptionIndex<BluetoothGattCharacteristic, BluetoothDevice> subscriptions = new SubscriptionIndex<>();
+    private NotificationScheduler<BluetoothDevice, BluetoothGattCharacteristic> notifications;
+    private Map<BluetoothDevice, Integer> mtus = new HashMap<>();
+    private Map<String, BluetoothDevice> connectedDevices = new HashMap<>();
+    // transmit and receive PHY for each device
+    private Map<BluetoothDevice, int[]> phys = new HashMap<>();
+    // PHY requested for new connections, 0 to leave it to the central
+    private int preferredPhyMask = 0;
+    private int preferredPhyOptions = 0;
+    private LongReadCache longReadCache = new LongReadCache();
+    private Map<BluetoothDevice, PreparedWriteBuffer<BluetoothGattCharacteristic>> preparedWrites = new HashMap<>();
+    private Metrics metrics = new Metrics();
+    private Trace trace = new Trace();
+    private DynamicReads<BluetoothGattCharacteristic, BluetoothDevice> dynamicReads = new DynamicReads<>();
+    private Map<BluetoothGattCharacteristic, WriteFilter<BluetoothDevice>> writeFilters = new HashMap<>();
+    // queues notifications for subscribers, conflated characteristics only send the latest waiting value
+    private NotificationFanout<BluetoothDevice, BluetoothGattCharacteristic> fanout = new NotificationFanout<>(subscriptions,
+            new NotificationFanout.Listener<BluetoothDevice, BluetoothGattCharacteristic>() {
+        @Override
+        public void onConflated(BluetoothDevice device, NotificationQueue.Notification<BluetoothGattCharacteristic> replaced) {
+            metrics.notificationConflated(replaced.characteristic.getUuid(), device.getAddress());
+            replaced.callback.onSent(device.getAddress(), replaced);
+        }
+
+        @Override
+        public void onDropped(BluetoothDevice device, NotificationQueue.Notification<BluetoothGattCharacteristic> notification, NotificationQueue<BluetoothGattCharacteristic> queue) {
+            if (trace.enabled) {
+                trace.record(Trace.NOTIFICATION_DROPPED, Trace.address(device.getAddress()), trace.symbol(notification.characteristic.getUuid()), queue.depth(), 0);
+            }
+            notification.callback.onFailed(device.getAddress(), notification, "queue full");
+        }
+    });
+
+    // write events are optionally delivered to JavaScript in batches
+    private WriteEventBatcher writeEventBatcher;
+
+    // send write events as binary frames rather than JSON
+    private boolean binaryWriteEvents = false;
 
     // Bluetooth state notification
     private CallbackContext stateCallback;
@@ -105,59 +259,276 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
+
+        eventLoopThread = new HandlerThread("BLEPeripheral", Process.THREAD_PRIORITY_FOREGROUND);
+        eventLoopThread.start();
+        eventLoop = new Handler(eventLoopThread.getLooper());
+
+        writeEventBatcher = new WriteEventBatcher(eventLoop, new WriteEventBatcher.Listener() {
+            @Override
+            public void onBatch(List<WriteEvent> events) {
+                sendWriteEvents(events);
+            }
+        });
+
+        if (preferences.getBoolean(EAGER_INIT_PREFERENCE, false)) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    String error = initializeBluetooth();
+                    if (error != null) {
+                        // actions will try again
+                        LOG.w(TAG, "Eager initialization failed: " + error);
+                    }
+                }
+            });
+        }
+    }
+
+    // Opens the adapter and GATT server on the event loop. Returns an error message, or
+    // null once initialized. A failure is retried by the next action, e.g. after
+    // Bluetooth is turned on.
+    private String initializeBluetooth() {
+        long start = SystemClock.uptimeMillis();
+        Activity activity = cordova.getActivity();
+        boolean hardwareSupportsBLE = activity.getApplicationContext()
+                                        .getPackageManager()
+                                        .hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+
+        if (!hardwareSupportsBLE) {
+          LOG.e(TAG, "This hardware does not support Bluetooth Low Energy");
+          return "This hardware does not support Bluetooth Low Energy";
+        }
+
+        BluetoothManager manager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (manager == null) {
+            LOG.e(TAG, "bluetoothManager is null");
+            return "Unable to get the Bluetooth Manager";
+        }
+        BluetoothAdapter adapter = manager.getAdapter();
+
+        boolean hardwareSupportsPeripherals = adapter.isMultipleAdvertisementSupported();
+        if (!hardwareSupportsPeripherals) {
+            String errorMessage = "This hardware does not support creating Bluetooth Low Energy peripherals";
+            LOG.e(TAG, errorMessage);
+            return errorMessage;
+        }
+
+        bluetoothManager = manager;
+        bluetoothAdapter = adapter;
+        if (!openGattServer()) {
+            LOG.e(TAG, "openGattServer returned null");
+            return "Unable to open the GATT server";
+        }
+        servicePipeline = new ServicePipeline<>(new ServicePipeline.Server<BluetoothGattService>() {
+            @Override
+            public boolean addService(BluetoothGattService service) {
+                return gattServer.addService(service);
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                eventLoop.postDelayed(task, delayMillis);
+            }
+        }, ADD_SERVICE_TIMEOUT_MILLIS);
+
+        initialized = true;
+        initMillis = SystemClock.uptimeMillis() - start;
+        LOG.d(TAG, "Initialized in " + initMillis + "ms");
+        return null;
+    }
+
+    // false if Android couldn't open it, e.g. while the adapter is still starting
+    private boolean openGattServer() {
+        BluetoothGattServer server = bluetoothManager.openGattServer(cordova.getContext(), gattServerCallback);
+        if (server == null) {
+            return false;
+        }
+        gattServer = server;
+        transport = new AndroidGattTransport(gattServer);
+        notifications = new NotificationScheduler<>(transport, NOTIFICATION_QUEUE_CAPACITY);
+        notifications.setListener(notificationMetrics);
+        return true;
     }
 
+    // { initMillis, extendedAdvertising, maxAdvertisingDataLength, le2MPhy, leCodedPhy }
+    private JSONObject capabilitiesToJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("initMillis", initMillis);
+        boolean androidO = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        json.put("extendedAdvertising", androidO && bluetoothAdapter.isLeExtendedAdvertisingSupported());
+        json.put("maxAdvertisingDataLength", androidO ? bluetoothAdapter.getLeMaximumAdvertisingDataLength() : AdvertisementPacker.LEGACY_LENGTH);
+        json.put("le2MPhy", androidO && bluetoothAdapter.isLe2MPhySupported());
+        json.put("leCodedPhy", androidO && bluetoothAdapter.isLeCodedPhySupported());
+        return json;
+    }
+
+    // Cordova calls these on the UI thread, the state they clean up belongs to the event loop
     @Override
     public void onDestroy() {
-        removeStateListener();
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (l2capServer != null) {
+                    l2capServer.close();
+                    l2capServer = null;
+                }
+                removeStateListener();
+            }
+        });
+        // runs the cleanup before the thread stops
+        eventLoopThread.quitSafely();
     }
 
     @Override
     public void onReset() {
-        removeStateListener();
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                removeStateListener();
+            }
+        });
     }
 
     @Override
-    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
-        LOG.d(TAG, "action = " + action);
+    public boolean execute(final String action, final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+        // actions wait on the event loop behind initialization, so nothing blocks the Cordova thread
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (trace.enabled) {
+                    trace.record(Trace.EXECUTE, 0, trace.symbol(action), 0, 0);
+                }
+                if (!initialized) {
+                    String error = initializeBluetooth();
+                    if (error != null) {
+                        callbackContext.error(error);
+                        return;
+                    }
+                }
+                try {
+                    if (!executeAction(action, args, callbackContext)) {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.INVALID_ACTION));
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Invalid arguments for " + action, e);
+                    callbackContext.error(e.getMessage());
+                } catch (RuntimeException e) {
+                    // e.g. a bad UUID, nothing outside the event loop would catch it
+                    Log.e(TAG, "Error running " + action, e);
+                    callbackContext.error(e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+            }
+        });
+
+        return true;
+    }
+
+    // runs on the event loop
+    private boolean executeAction(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+
+        boolean validAction = true;
+
+        if (action.equals(SET_CHARACTERISTIC_VALUE_CHANGED_LISTENER)) {
 
-        if (bluetoothAdapter == null) {
-            Activity activity = cordova.getActivity();
-            boolean hardwareSupportsBLE = activity.getApplicationContext()
-                                            .getPackageManager()
-                                            .hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+            characteristicValueChangedCallback = callbackContext;
+
+        } else if (action.equals(READY)) {
+
+            callbackContext.success(capabilitiesToJSON());
+
+        } else if (action.equals(SET_WRITE_REQUEST_BATCHING)) {
+
+            int windowMillis = args.getInt(0);
+            int maxEvents = args.getInt(1);
+
+            writeEventBatcher.configure(windowMillis, maxEvents);
+            callbackContext.success();
+
+        } else if (action.equals(SET_BINARY_WRITE_REQUESTS)) {
 
-            if (!hardwareSupportsBLE) {
-              LOG.e(TAG, "This hardware does not support Bluetooth Low Energy");
-              callbackContext.error("This hardware does not support Bluetooth Low Energy");
-              return false;
+            // flush so the batch waiting is sent with the encoding it was collected for
+            writeEventBatcher.flush();
+            binaryWriteEvents = args.getBoolean(0);
+            callbackContext.success();
+
+        } else if (action.equals(SET_CONNECTION_STATE_CHANGED_LISTENER)) {
+
+            connectionStateCallback = callbackContext;
+
+        } else if (action.equals(SET_RECOVERY_LISTENER)) {
+
+            // turns on recovery, the listener is called each time the GATT server is restored
+            recoveryCallback = callbackContext;
+            addStateListener();
+
+        } else if (action.equals(SET_PREFERRED_PHY)) {
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                callbackContext.error("Setting the PHY requires Android 8.0 or later");
+                return /* validAction */ true; // stop processing because of error
             }
 
-            BluetoothManager bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
-            if (bluetoothManager == null) {
-                LOG.e(TAG, "bluetoothManager is null");
-                callbackContext.error("Unable to get the Bluetooth Manager");
-                return false;
+            int phyMask = phyMaskFromString(args.getString(1));
+            if (phyMask == 0) {
+                callbackContext.error("Unknown PHY " + args.getString(1) + ", use 1M, 2M or coded");
+                return /* validAction */ true; // stop processing because of error
             }
-            bluetoothAdapter = bluetoothManager.getAdapter();
+            int phyOptions = phyOptionsFromString(args.isNull(2) ? null : args.getString(2));
 
-            boolean hardwareSupportsPeripherals = bluetoothAdapter.isMultipleAdvertisementSupported();
-            if (!hardwareSupportsPeripherals) {
-                String errorMessage = "This hardware does not support creating Bluetooth Low Energy peripherals";
-                LOG.e(TAG, errorMessage);
-                callbackContext.error(errorMessage);
-                return false;
+            if (args.isNull(0)) {
+                // applies to devices that connect from now on
+                preferredPhyMask = phyMask;
+                preferredPhyOptions = phyOptions;
+            } else {
+                BluetoothDevice device = connectedDevices.get(args.getString(0));
+                if (device == null) {
+                    callbackContext.error("Device " + args.getString(0) + " is not connected");
+                    return /* validAction */ true; // stop processing because of error
+                }
+                gattServer.setPreferredPhy(device, phyMask, phyMask, phyOptions);
             }
+            callbackContext.success();
 
-            gattServer = bluetoothManager.openGattServer(cordova.getContext(), gattServerCallback);
+        } else if (action.equals(SET_CHARACTERISTIC_READ_REQUEST_LISTENER)) {
 
-        }
+            readRequestCallback = callbackContext;
 
-        boolean validAction = true;
+        } else if (action.equals(SET_DYNAMIC_READ)) {
 
-        if (action.equals(SET_CHARACTERISTIC_VALUE_CHANGED_LISTENER)) {
+            UUID serviceUUID = uuidFromString(args.getString(0));
+            UUID characteristicUUID = uuidFromString(args.getString(1));
+            boolean enabled = args.getBoolean(2);
+            long ttl = args.isNull(3) ? DEFAULT_READ_TTL_MILLIS : args.getLong(3);
+            long deadline = args.isNull(4) ? DEFAULT_READ_DEADLINE_MILLIS : args.getLong(4);
 
-            characteristicValueChangedCallback = callbackContext;
+            BluetoothGattService service = services.get(serviceUUID);
+            if (service == null) {
+                callbackContext.error("Service " + serviceUUID + " not found");
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
+
+            if (characteristic == null) {
+                callbackContext.error("Characteristic " + characteristicUUID + " not found on service " + serviceUUID);
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            if (enabled) {
+                dynamicReads.enable(characteristic, ttl, deadline);
+            } else {
+                dynamicReads.disable(characteristic);
+            }
+            callbackContext.success();
+
+        } else if (action.equals(RESPOND_TO_READ_REQUEST)) {
+
+            // a missing value means JavaScript couldn't answer, the fallback value is used
+            int id = args.getInt(0);
+            byte[] value = args.isNull(1) ? null : args.getArrayBuffer(1);
+            readValueReceived(id, value);
+            callbackContext.success();
 
         } else if (action.equals(SET_BLUETOOTH_STATE_CHANGED_LISTENER)) {
 
@@ -179,7 +550,7 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
 
             services.put(serviceUUID, service);
 
-            callbackContext.success();
+            callbackContext.success(serviceHandles.add(service));
 
         } else if (action.contentEquals(ADD_CHARACTERISTIC)) {
 
@@ -188,11 +559,16 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
             int properties = args.getInt(2);
             int permissions = args.getInt(3);
 
+            BluetoothGattService service = services.get(serviceUUID);
+            if (service == null) {
+                callbackContext.error("Service " + serviceUUID + " not found");
+                return /* validAction */ true; // stop processing because of error
+            }
+
             BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
                     characteristicUUID,
                     properties,
                     permissions);
-            BluetoothGattService service = services.get(serviceUUID);
             service.addCharacteristic(characteristic);
 
             // If notify or indicate, we need to add the 2902 descriptor
@@ -200,80 +576,106 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
                 characteristic.addDescriptor(createClientCharacteristicConfigurationDescriptor());
             }
 
-            callbackContext.success();
+            // optional write filter rules
+            if (!args.isNull(4)) {
+                writeFilters.put(characteristic, writeFilterFromJSON(args.getJSONObject(4)));
+            }
+
+            callbackContext.success(characteristicHandles.add(characteristic));
 
         } else if (action.equals(CREATE_SERVICE_FROM_JSON)) {
 
             JSONObject json = args.getJSONObject(0);
-            Log.d(TAG, json.toString());
 
             try {
-                UUID serviceUUID = uuidFromString(json.getString("uuid"));
-                Log.d(TAG, "Creating service " + serviceUUID);
-                BluetoothGattService service = new BluetoothGattService(serviceUUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-                JSONArray characteristicArray = json.getJSONArray("characteristics");
-                for (int i = 0; i < characteristicArray.length(); i++) {
-                    JSONObject jsonObject = characteristicArray.getJSONObject(i);
-                    UUID uuid = uuidFromString(jsonObject.getString("uuid"));
-                    int properties = jsonObject.getInt("properties");
-                    int permissions = jsonObject.getInt("permissions");
-                    Log.d(TAG, "Adding characteristic " + uuid + " properties=" + properties + " permissions=" + permissions);
-                    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid, properties, permissions);
-
-                    // If notify or indicate, add the 2902 descriptor
-                    if (isNotify(characteristic) || isIndicate(characteristic)) {
-                        characteristic.addDescriptor(createClientCharacteristicConfigurationDescriptor());
+                final JSONObject handles = new JSONObject();
+                BluetoothGattService service = serviceFromJSON(json, handles);
+
+                publishService(service, new ServiceAddedCallback(callbackContext) {
+                    @Override
+                    void success(long micros) {
+                        callbackContext.success(handles);
                     }
+                });
 
-                    // TODO handle JSON without descriptors
-                    JSONArray descriptorsArray = jsonObject.getJSONArray("descriptors");
-                    for (int j = 0; j < descriptorsArray.length(); j++) {
-                        JSONObject jsonDescriptor = descriptorsArray.getJSONObject(j);
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid JSON for Service", e);
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
 
-                        UUID descriptorUUID = uuidFromString(jsonDescriptor.getString("uuid"));
+        } else if (action.equals(CREATE_SERVICES_FROM_JSON)) {
 
-                        // TODO descriptor permissions should be optional in the JSON
-                        //int descriptorPermissions = jsonDescriptor.getInt("permissions");
-                        int descriptorPermissions = BluetoothGattDescriptor.PERMISSION_READ; // | BluetoothGattDescriptor.PERMISSION_WRITE;
+            // the whole table is parsed before anything is added
+            long start = System.nanoTime();
+            JSONArray json = args.getJSONArray(0);
+            List<BluetoothGattService> table = new ArrayList<>();
+            List<JSONObject> tableHandles = new ArrayList<>();
 
-                        // future versions need to handle more than Strings
-                        String descriptorValue = jsonDescriptor.getString("value");
-                        Log.d(TAG, "Adding descriptor " + descriptorUUID +  " permissions=" + permissions + " value=" + descriptorValue);
+            try {
+                for (int i = 0; i < json.length(); i++) {
+                    JSONObject handles = new JSONObject();
+                    table.add(serviceFromJSON(json.getJSONObject(i), handles));
+                    tableHandles.add(handles);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Invalid JSON for Service", e);
+                callbackContext.error(e.getMessage());
+                return /* validAction */ true; // stop processing because of error
+            }
 
-                        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(descriptorUUID, descriptorPermissions);
+            publishServices(table, tableHandles, (System.nanoTime() - start) / 1000, callbackContext);
 
-                        if (!characteristic.addDescriptor(descriptor)) {
-                            callbackContext.error("Failed to add descriptor " + descriptorValue);
-                            return /*valid action */ true; // stop processing because of error
-                        }
+        } else if (action.equals(COMPILE_SERVICES)) {
 
-                        if (!descriptor.setValue(descriptorValue.getBytes())) {
-                            callbackContext.error("Failed to set descriptor value to " + descriptorValue);
-                            return /*valid action */ true; // stop processing because of error
-                        }
+            // arguments are the service JSON array and an optional path to save it
+            JSONArray json = args.getJSONArray(0);
+            List<GattSchema.Service> schema = new ArrayList<>();
+            for (int i = 0; i < json.length(); i++) {
+                schema.add(GattSchema.fromJSON(json.getJSONObject(i)));
+            }
+            byte[] compiled = GattSchema.encode(schema);
 
+            if (!args.isNull(1)) {
+                try {
+                    FileOutputStream out = new FileOutputStream(schemaFile(args.getString(1)));
+                    try {
+                        out.write(compiled);
+                    } finally {
+                        out.close();
                     }
-
-                    service.addCharacteristic(characteristic);
-
+                } catch (IOException e) {
+                    Log.e(TAG, "Error saving GATT schema", e);
+                    callbackContext.error("Error saving GATT schema: " + e.getMessage());
+                    return /* validAction */ true; // stop processing because of error
                 }
+            }
+            callbackContext.success(compiled);
 
-                services.put(serviceUUID, service);
+        } else if (action.equals(RESTORE_SERVICES)) {
 
-                if (gattServer.addService(service)) {
-                    Log.d(TAG, "Successfully added service " + serviceUUID);
-                    callbackContext.success();
-                } else {
-                    callbackContext.error("Error adding " + service.getUuid() + " to GATT Server");
-                }
+            // argument is a path from compileServices or asset:path
+            long start = System.nanoTime();
+            List<BluetoothGattService> table = new ArrayList<>();
+            List<JSONObject> tableHandles = new ArrayList<>();
 
-            } catch (JSONException e) {
-                Log.e(TAG, "Invalid JSON for Service", e);
-                e.printStackTrace();
+            try {
+                for (GattSchema.Service schema : GattSchema.decode(mapSchema(args.getString(0)))) {
+                    JSONObject handles = new JSONObject();
+                    table.add(serviceFromSchema(schema, handles));
+                    tableHandles.add(handles);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading GATT schema", e);
+                callbackContext.error("Error reading GATT schema: " + e.getMessage());
+                return /* validAction */ true; // stop processing because of error
+            } catch (IllegalArgumentException e) {
                 callbackContext.error(e.getMessage());
+                return /* validAction */ true; // stop processing because of error
             }
 
+            publishServices(table, tableHandles, (System.nanoTime() - start) / 1000, callbackContext);
+
         } else if (action.equals(PUBLISH_SERVICE)) {
 
             UUID serviceUUID = uuidFromString(args.getString(0));
@@ -284,29 +686,54 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
                 return /* validAction */ true; // stop processing because of error
             }
 
-            boolean success = gattServer.addService(service);
-
-            if (success) {
-                callbackContext.success();
-            } else {
-                callbackContext.error("Error adding " + serviceUUID + " to GATT Server");
-            }
+            publishService(service, new ServiceAddedCallback(callbackContext) {
+                @Override
+                void success(long micros) {
+                    callbackContext.success();
+                }
+            });
 
         } else if (action.equals(START_ADVERTISING)) {
 
-            UUID serviceUUID = uuidFromString(args.getString(0));
-            String advertisedName = args.getString(1);
+            // arguments are one or more service UUIDs, the name and an optional profile
+            JSONObject options = args.isNull(2) ? new JSONObject() : args.getJSONObject(2);
+            AdvertisingProfile profile = advertisingProfileFromJSON(options);
+            if (profile == null) {
+                callbackContext.error("Unknown advertising profile " + options.optString("profile"));
+                return /* validAction */ true; // stop processing because of error
+            }
 
-            Log.w(TAG, "App requested to advertise name " + advertisedName + " but this feature is not currently supported by the Android version of the plugin");
+            JSONArray serviceUUIDs = args.optJSONArray(0);
+            if (serviceUUIDs != null) {
+                for (int i = 0; i < serviceUUIDs.length(); i++) {
+                    profile.serviceUuids.add(uuidFromString(serviceUUIDs.getString(i)));
+                }
+            } else if (!args.isNull(0)) {
+                profile.serviceUuids.add(uuidFromString(args.getString(0)));
+            }
 
-            BluetoothLeAdvertiser bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+            // Android can only advertise the adapter name, changing it is opt in because it's system wide
+            String advertisedName = args.isNull(1) ? null : args.getString(1);
+            String name = bluetoothAdapter.getName();
+            if (advertisedName != null && !advertisedName.equals(name)) {
+                if (options.optBoolean("setAdapterName", false)) {
+                    bluetoothAdapter.setName(advertisedName);
+                    name = advertisedName;
+                } else {
+                    Log.w(TAG, "Advertising the adapter name " + name + " instead of " + advertisedName + ", set setAdapterName to change it");
+                }
+            }
 
-            AdvertiseData advertisementData = getAdvertisementData(serviceUUID);
-            AdvertiseSettings advertiseSettings = getAdvertiseSettings();
+            stopAdvertising();
+            startAdvertising(profile, name, callbackContext);
+            advertisingProfile = profile;
+            advertisingName = name;
 
-            bluetoothLeAdvertiser.startAdvertising(advertiseSettings, advertisementData, advertiseCallback);
+        } else if (action.equals(STOP_ADVERTISING)) {
 
-            advertisingStartedCallback = callbackContext;
+            stopAdvertising();
+            advertisingProfile = null;
+            callbackContext.success();
 
         } else if (action.equals(SET_CHARACTERISTIC_VALUE)) {
 
@@ -327,266 +754,1877 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
                 return /* validAction */ true; // stop processing because of error
             }
 
-            characteristic.setValue(value);
+            setCharacteristicValue(characteristic, value, callbackContext);
 
-            if (isNotify(characteristic) || isIndicate(characteristic)) {
-                notifyRegisteredDevices(characteristic);
+        } else if (action.equals(SET_CHARACTERISTIC_VALUE_BY_HANDLE)) {
+
+            BluetoothGattCharacteristic characteristic = characteristicHandles.get(args.getInt(0));
+            if (characteristic == null) {
+                callbackContext.error("Invalid characteristic handle " + args.getInt(0));
+                return /* validAction */ true; // stop processing because of error
             }
 
-            callbackContext.success();
+            setCharacteristicValue(characteristic, args.getArrayBuffer(1), callbackContext);
 
-        } else if (action.equals(SETTINGS)) {
+        } else if (action.equals(SET_CHARACTERISTIC_READ_VALUE_BY_HANDLE)) {
 
-            Intent intent = new Intent(Settings.ACTION_BLUETOOTH_SETTINGS);
-            cordova.getActivity().startActivity(intent);
+            // sets the value returned to reads without notifying subscribers
+            BluetoothGattCharacteristic characteristic = characteristicHandles.get(args.getInt(0));
+            if (characteristic == null) {
+                callbackContext.error("Invalid characteristic handle " + args.getInt(0));
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            characteristic.setValue(args.getArrayBuffer(1));
             callbackContext.success();
 
-        } else if (action.equals(ENABLE)) {
+        } else if (action.equals(NOTIFY_CHARACTERISTIC_BY_HANDLE)) {
 
-            enableBluetoothCallback = callbackContext;
-            Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            cordova.startActivityForResult(this, intent, REQUEST_ENABLE_BLUETOOTH);
+            // sends the current value to subscribers
+            BluetoothGattCharacteristic characteristic = characteristicHandles.get(args.getInt(0));
+            if (characteristic == null) {
+                callbackContext.error("Invalid characteristic handle " + args.getInt(0));
+                return /* validAction */ true; // stop processing because of error
+            }
 
-        } else {
+            if (!isNotify(characteristic) && !isIndicate(characteristic)) {
+                callbackContext.error("Characteristic " + characteristic.getUuid() + " does not support notify or indicate");
+                return /* validAction */ true; // stop processing because of error
+            }
 
-            validAction = false;
+            if (characteristic.getValue() == null) {
+                callbackContext.error("Characteristic " + characteristic.getUuid() + " does not have a value");
+                return /* validAction */ true; // stop processing because of error
+            }
 
-        }
+            notifyRegisteredDevices(characteristic, characteristic.getValue(), callbackContext);
 
-        return validAction;
-    }
+        } else if (action.equals(SET_CHARACTERISTIC_VALUES)) {
 
+            // arguments are service, characteristic, value for each characteristic
+            setCharacteristicValues(args, callbackContext);
 
-    private void onBluetoothStateChange(Intent intent) {
-        final String action = intent.getAction();
+        } else if (action.equals(STREAM_CHARACTERISTIC_VALUE)) {
 
-        if (action != null && action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-            final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
-            sendBluetoothStateChange(state);
-        }
-    }
+            UUID serviceUUID = uuidFromString(args.getString(0));
+            UUID characteristicUUID = uuidFromString(args.getString(1));
+            byte[] value = args.getArrayBuffer(2);
 
-    private void sendBluetoothStateChange(int state) {
-        if (this.stateCallback != null) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, this.bluetoothStates.get(state));
-            result.setKeepCallback(true);
-            this.stateCallback.sendPluginResult(result);
-        }
-    }
+            BluetoothGattService service = services.get(serviceUUID);
+            if (service == null) {
+                callbackContext.error("Service " + serviceUUID + " not found");
+                return /* validAction */ true; // stop processing because of error
+            }
 
-    private void addStateListener() {
-        if (this.stateReceiver == null) {
-            this.stateReceiver = new BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    onBluetoothStateChange(intent);
-                }
-            };
-        }
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
 
-        try {
-            IntentFilter intentFilter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
-            webView.getContext().registerReceiver(this.stateReceiver, intentFilter);
-        } catch (Exception e) {
-            LOG.e(TAG, "Error registering state receiver: " + e.getMessage(), e);
-        }
-    }
+            if (characteristic == null) {
+                callbackContext.error("Characteristic " + characteristicUUID + " not found on service " + serviceUUID);
+                return /* validAction */ true; // stop processing because of error
+            }
 
-    private void removeStateListener() {
-        if (this.stateReceiver != null) {
-            try {
-                webView.getContext().unregisterReceiver(this.stateReceiver);
-            } catch (Exception e) {
-                LOG.e(TAG, "Error un-registering state receiver: " + e.getMessage(), e);
+            if (!isNotify(characteristic) && !isIndicate(characteristic)) {
+                callbackContext.error("Characteristic " + characteristicUUID + " does not support notify or indicate");
+                return /* validAction */ true; // stop processing because of error
             }
-        }
-        this.stateCallback = null;
-        this.stateReceiver = null;
-    }
 
+            if (value.length == 0) {
+                callbackContext.error("Value is empty");
+                return /* validAction */ true; // stop processing because of error
+            }
 
-    @Override
-    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+            // callback gets progress updates and is resolved once all subscribers have the value
+            streamToRegisteredDevices(characteristic, value, callbackContext);
 
-        if (requestCode == REQUEST_ENABLE_BLUETOOTH) {
+        } else if (action.equals(SET_NOTIFICATION_CONFLATION)) {
 
-            if (resultCode == Activity.RESULT_OK) {
-                LOG.d(TAG, "User enabled Bluetooth");
-                if (enableBluetoothCallback != null) {
-                    enableBluetoothCallback.success();
-                }
-            } else {
-                LOG.d(TAG, "User did *NOT* enable Bluetooth");
-                if (enableBluetoothCallback != null) {
+            UUID serviceUUID = uuidFromString(args.getString(0));
+            UUID characteristicUUID = uuidFromString(args.getString(1));
+            boolean enabled = args.getBoolean(2);
+
+            BluetoothGattService service = services.get(serviceUUID);
+            if (service == null) {
+                callbackContext.error("Service " + serviceUUID + " not found");
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUUID);
+
+            if (characteristic == null) {
+                callbackContext.error("Characteristic " + characteristicUUID + " not found on service " + serviceUUID);
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            fanout.setConflated(characteristic, enabled);
+            callbackContext.success();
+
+        } else if (action.equals(START_L2CAP_SERVER)) {
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                callbackContext.error("L2CAP channels require Android 10 or later");
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            // arguments are secure, then optionally the service and characteristic that publish the PSM
+            boolean secure = args.optBoolean(0);
+            BluetoothGattCharacteristic psmCharacteristic = null;
+            if (!args.isNull(1)) {
+                UUID serviceUUID = uuidFromString(args.getString(1));
+                UUID characteristicUUID = uuidFromString(args.getString(2));
+
+                BluetoothGattService service = services.get(serviceUUID);
+                if (service == null) {
+                    callbackContext.error("Service " + serviceUUID + " not found");
+                    return /* validAction */ true; // stop processing because of error
+                }
+
+                psmCharacteristic = service.getCharacteristic(characteristicUUID);
+                if (psmCharacteristic == null) {
+                    callbackContext.error("Characteristic " + characteristicUUID + " not found on service " + serviceUUID);
+                    return /* validAction */ true; // stop processing because of error
+                }
+            }
+
+            if (l2capServer != null) {
+                l2capServer.close();
+                l2capServer = null;
+            }
+
+            String error = startL2capServer(secure, psmCharacteristic);
+            if (error != null) {
+                callbackContext.error(error);
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            // { psm: 133 }
+            JSONObject json = new JSONObject();
+            json.put("psm", l2capServer.getPsm());
+            callbackContext.success(json);
+
+        } else if (action.equals(STOP_L2CAP_SERVER)) {
+
+            if (l2capServer != null) {
+                l2capServer.close();
+                l2capServer = null;
+            }
+            if (l2capPsmCharacteristic != null) {
+                // 0 tells centrals there is nothing to connect to
+                setL2capPsm(l2capPsmCharacteristic, 0);
+            }
+            l2capStarted = false;
+            l2capPsmCharacteristic = null;
+            callbackContext.success();
+
+        } else if (action.equals(SET_L2CAP_LISTENER)) {
+
+            l2capCallback = callbackContext;
+
+        } else if (action.equals(L2CAP_SEND)) {
+
+            L2capServer.Channel channel = getL2capChannel(args.getInt(0));
+            if (channel == null) {
+                callbackContext.error("L2CAP channel " + args.getInt(0) + " is not open");
+                return /* validAction */ true; // stop processing because of error
+            }
+
+            // resolved on the writer thread once the data is written to the socket
+            final CallbackContext sendCallback = callbackContext;
+            boolean queued = channel.send(args.getArrayBuffer(1), new L2capServer.SendCallback() {
+                @Override
+                public void onSent(L2capServer.Channel channel, int length) {
+                    sendCallback.success(channel.getQueuedBytes());
+                }
+
+                @Override
+                public void onFailed(L2capServer.Channel channel, String reason) {
+                    sendCallback.error("L2CAP write failed: " + reason);
+                }
+            });
+
+            if (!queued) {
+                callbackContext.error("L2CAP send queue full");
+            }
+
+        } else if (action.equals(L2CAP_ACKNOWLEDGE)) {
+
+            // JavaScript handled this many received bytes
+            L2capServer.Channel channel = getL2capChannel(args.getInt(0));
+            if (channel != null) {
+                channel.acknowledge(args.getInt(1));
+            }
+            callbackContext.success();
+
+        } else if (action.equals(L2CAP_CLOSE)) {
+
+            L2capServer.Channel channel = getL2capChannel(args.getInt(0));
+            if (channel != null) {
+                channel.close("closed");
+            }
+            callbackContext.success();
+
+        } else if (action.equals(GET_L2CAP_STATS)) {
+
+            callbackContext.success(getL2capStats());
+
+        } else if (action.equals(GET_NOTIFICATION_QUEUE_STATS)) {
+
+            callbackContext.success(getNotificationQueueStats());
+
+        } else if (action.equals(GET_STATISTICS)) {
+
+            boolean delta = args.optBoolean(0);
+            callbackContext.success(statisticsToJSON(metrics.snapshot(delta)));
+
+        } else if (action.equals(SET_TRACE)) {
+
+            boolean enabled = args.getBoolean(0);
+            int capacity = args.isNull(1) ? Trace.DEFAULT_CAPACITY : args.getInt(1);
+            trace.configure(enabled, capacity);
+            callbackContext.success();
+
+        } else if (action.equals(DUMP_TRACE)) {
+
+            boolean clear = args.optBoolean(0);
+            callbackContext.success(traceToJSON());
+            if (clear) {
+                trace.clear();
+            }
+
+        } else if (action.equals(SETTINGS)) {
+
+            Intent intent = new Intent(Settings.ACTION_BLUETOOTH_SETTINGS);
+            cordova.getActivity().startActivity(intent);
+            callbackContext.success();
+
+        } else if (action.equals(ENABLE)) {
+
+            enableBluetoothCallback = callbackContext;
+            Intent intent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+            cordova.startActivityForResult(this, intent, REQUEST_ENABLE_BLUETOOTH);
+
+        } else {
+
+            validAction = false;
+
+        }
+
+        return validAction;
+    }
+
+
+    private void onBluetoothStateChange(Intent intent) {
+        final String action = intent.getAction();
+
+        if (action != null && action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+            final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            sendBluetoothStateChange(state);
+
+            if (recoveryCallback != null) {
+                if (state == BluetoothAdapter.STATE_TURNING_OFF || state == BluetoothAdapter.STATE_OFF) {
+                    closeGattServer();
+                } else if (state == BluetoothAdapter.STATE_ON) {
+                    recover();
+                }
+            }
+        }
+    }
+
+    // The GATT server and advertising die with the adapter. Connected devices are
+    // removed and anything waiting fails, the services are kept for recover.
+    private void closeGattServer() {
+        if (gattServerClosed) {
+            return;
+        }
+        Log.d(TAG, "Bluetooth turned off, closing the GATT server");
+
+        for (BluetoothDevice device : new ArrayList<>(connectedDevices.values())) {
+            connectionStateChanged(device, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+        }
+        servicePipeline.clear(ServicePipeline.STATUS_FAILED);
+
+        if (advertisingStartedCallback != null) {
+            advertisingStartedCallback.error("Bluetooth turned off");
+            advertisingStartedCallback = null;
+        }
+        advertisement = null;
+
+        gattServer.close();
+        gattServerClosed = true;
+
+        // the sockets are already dead, the server is reopened by recover
+        if (l2capServer != null) {
+            l2capServer.close();
+            l2capServer = null;
+        }
+    }
+
+    // Reopens the GATT server, adds the same service objects so characteristic values and
+    // handles carry over, then restarts the last advertisement.
+    private void recover() {
+        if (!gattServerClosed) {
+            return;
+        }
+        // Bluetooth was turned off and on again while retrying, start over
+        if (recoveryRetry != null) {
+            eventLoop.removeCallbacks(recoveryRetry);
+            recoveryRetry = null;
+        }
+        recover(SystemClock.uptimeMillis(), 0);
+    }
+
+    private void recover(final long start, final int attempt) {
+        recoveryRetry = null;
+        if (!gattServerClosed || bluetoothAdapter.getState() != BluetoothAdapter.STATE_ON) {
+            return; // turned off again, STATE_ON calls recover
+        }
+
+        if (!openGattServer()) {
+            if (attempt < RECOVERY_RETRY_MILLIS.length) {
+                Log.w(TAG, "Unable to reopen the GATT server, retrying in " + RECOVERY_RETRY_MILLIS[attempt] + "ms");
+                recoveryRetry = new Runnable() {
+                    @Override
+                    public void run() {
+                        recover(start, attempt + 1);
+                    }
+                };
+                eventLoop.postDelayed(recoveryRetry, RECOVERY_RETRY_MILLIS[attempt]);
+            } else {
+                recoveryFailed(start, "Unable to open the GATT server");
+            }
+            return;
+        }
+        gattServerClosed = false;
+
+        List<BluetoothGattService> table = new ArrayList<>(publishedServices);
+        publishedServices.clear(); // services are added back as onServiceAdded confirms them
+
+        final JSONArray results = new JSONArray();
+        final int[] remaining = { table.size() };
+        if (table.isEmpty()) {
+            recovered(start, results);
+            return;
+        }
+
+        for (BluetoothGattService service : table) {
+            publishService(service, new ServicePipeline.Callback<BluetoothGattService>() {
+                @Override
+                public void onServiceAdded(BluetoothGattService service, int status, long micros) {
+                    JSONObject result = new JSONObject();
+                    try {
+                        result.put("uuid", UUIDHelper.uuidToString(service.getUuid()));
+                        result.put("status", status);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Error creating service JSON", e);
+                    }
+                    results.put(result);
+
+                    if (--remaining[0] == 0) {
+                        recovered(start, results);
+                    }
+                }
+            });
+        }
+    }
+
+    // { elapsed: 85, services: [{ uuid, status }], advertising: true }
+    private void recovered(long start, JSONArray results) {
+        boolean advertising = advertisingProfile != null;
+        if (advertising) {
+            startAdvertising(advertisingProfile, advertisingName, null);
+        }
+
+        int psm = 0;
+        if (l2capStarted) {
+            String error = startL2capServer(l2capSecure, l2capPsmCharacteristic);
+            if (error == null) {
+                psm = l2capServer.getPsm();
+            } else {
+                Log.e(TAG, "Error restarting L2CAP server: " + error);
+                if (l2capPsmCharacteristic != null) {
+                    setL2capPsm(l2capPsmCharacteristic, 0);
+                }
+            }
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        Log.d(TAG, "Recovered GATT server in " + elapsed + "ms");
+        if (recoveryCallback == null) {
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("elapsed", elapsed);
+            json.put("services", results);
+            json.put("advertising", advertising);
+            if (psm != 0) {
+                json.put("l2capPsm", psm);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating recovery JSON", e);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        recoveryCallback.sendPluginResult(result);
+    }
+
+    // { elapsed, error }, the services stay published for the next time Bluetooth turns on
+    private void recoveryFailed(long start, String error) {
+        long elapsed = SystemClock.uptimeMillis() - start;
+        Log.e(TAG, "Recovery failed after " + elapsed + "ms: " + error);
+        if (recoveryCallback == null) {
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("elapsed", elapsed);
+            json.put("error", error);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating recovery JSON", e);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        recoveryCallback.sendPluginResult(result);
+    }
+
+    private void sendBluetoothStateChange(int state) {
+        if (this.stateCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, this.bluetoothStates.get(state));
+            result.setKeepCallback(true);
+            this.stateCallback.sendPluginResult(result);
+        }
+    }
+
+    // shared by the state listener and recovery, registered once
+    private void addStateListener() {
+        if (this.stateReceiver != null) {
+            return;
+        }
+
+        this.stateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, final Intent intent) {
+                eventLoop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBluetoothStateChange(intent);
+                    }
+                });
+            }
+        };
+
+        try {
+            IntentFilter intentFilter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+            webView.getContext().registerReceiver(this.stateReceiver, intentFilter);
+        } catch (Exception e) {
+            LOG.e(TAG, "Error registering state receiver: " + e.getMessage(), e);
+        }
+    }
+
+    private void removeStateListener() {
+        if (this.stateReceiver != null) {
+            try {
+                webView.getContext().unregisterReceiver(this.stateReceiver);
+            } catch (Exception e) {
+                LOG.e(TAG, "Error un-registering state receiver: " + e.getMessage(), e);
+            }
+        }
+        this.stateCallback = null;
+        this.recoveryCallback = null;
+        this.stateReceiver = null;
+    }
+
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+
+        if (requestCode == REQUEST_ENABLE_BLUETOOTH) {
+
+            if (resultCode == Activity.RESULT_OK) {
+                LOG.d(TAG, "User enabled Bluetooth");
+                if (enableBluetoothCallback != null) {
+                    enableBluetoothCallback.success();
+                }
+            } else {
+                LOG.d(TAG, "User did *NOT* enable Bluetooth");
+                if (enableBluetoothCallback != null) {
                     enableBluetoothCallback.error("User did not enable Bluetooth");
                 }
             }
 
-            enableBluetoothCallback = null;
+            enableBluetoothCallback = null;
+        }
+    }
+
+    // Callbacks arrive on a binder thread, hand them to the event loop
+    private BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothDevice device, final int status, final int newState) {
+            super.onConnectionStateChange(device, status, newState);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    connectionStateChanged(device, status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceAdded(final int status, final BluetoothGattService service) {
+            super.onServiceAdded(status, service);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (trace.enabled) {
+                        trace.record(Trace.SERVICE_ADDED, 0, trace.symbol(service.getUuid()), status, 0);
+                    }
+                    servicePipeline.serviceAdded(service, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId, final int offset, final BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    characteristicReadRequest(device, requestId, offset, characteristic);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId, final BluetoothGattCharacteristic characteristic, final boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
+            // latency is measured from here, not from when the event loop gets to it
+            final long received = System.nanoTime();
+            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    characteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value, received);
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            super.onNotificationSent(device, status);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (trace.enabled) {
+                        trace.record(Trace.NOTIFICATION_SENT, Trace.address(device.getAddress()), -1, status, 0);
+                    }
+                    notifications.notificationSent(device, status == BluetoothGatt.GATT_SUCCESS, "status " + status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+            super.onMtuChanged(device, mtu);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (trace.enabled) {
+                        trace.record(Trace.MTU_CHANGED, Trace.address(device.getAddress()), -1, mtu, 0);
+                    }
+                    mtus.put(device, mtu);
+                    sendConnectionEvent("mtuChanged", device, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void onPhyUpdate(final BluetoothDevice device, final int txPhy, final int rxPhy, final int status) {
+            super.onPhyUpdate(device, txPhy, rxPhy, status);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    phyChanged(device, txPhy, rxPhy, status);
+                }
+            });
+        }
+
+        @Override
+        public void onPhyRead(final BluetoothDevice device, final int txPhy, final int rxPhy, final int status) {
+            super.onPhyRead(device, txPhy, rxPhy, status);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    phyChanged(device, txPhy, rxPhy, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId, final BluetoothGattDescriptor descriptor, final boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
+            super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    descriptorWriteRequest(device, requestId, descriptor, responseNeeded, value);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorReadRequest(final BluetoothDevice device, final int requestId, final int offset, final BluetoothGattDescriptor descriptor) {
+            super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    descriptorReadRequest(device, requestId, offset, descriptor);
+                }
+            });
+        }
+
+        @Override
+        public void onExecuteWrite(final BluetoothDevice device, final int requestId, final boolean execute) {
+            final long received = System.nanoTime();
+            super.onExecuteWrite(device, requestId, execute);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    executeWrite(device, requestId, execute, received);
+                }
+            });
+        }
+
+    };
+
+    // GATT callbacks, these run on the event loop
+
+    private void connectionStateChanged(BluetoothDevice device, int status, int newState) {
+        if (trace.enabled) {
+            trace.record(Trace.CONNECTION_STATE, Trace.address(device.getAddress()), -1, status, newState);
+        }
+
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            connectedDevices.put(device.getAddress(), device);
+            sendConnectionEvent("connected", device, status);
+
+            // the PHY is reported with a phyChanged event
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                if (preferredPhyMask != 0) {
+                    gattServer.setPreferredPhy(device, preferredPhyMask, preferredPhyMask, preferredPhyOptions);
+                } else {
+                    gattServer.readPhy(device);
+                }
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            removeDevice(device);
+            sendConnectionEvent("disconnected", device, status);
+        }
+    }
+
+    private void phyChanged(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+        if (trace.enabled) {
+            trace.record(Trace.PHY_CHANGED, Trace.address(device.getAddress()), -1, txPhy, rxPhy);
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS && connectedDevices.containsKey(device.getAddress())) {
+            phys.put(device, new int[] { txPhy, rxPhy });
+        }
+        sendConnectionEvent("phyChanged", device, status);
+    }
+
+    // { event: 'connected', device: 'AA:BB:CC:DD:EE:FF', status: 0, mtu: 23, txPhy: '1M', rxPhy: '1M' }
+    private void sendConnectionEvent(String event, BluetoothDevice device, int status) {
+        if (connectionStateCallback == null) {
+            return;
+        }
+
+        int[] phy = phys.get(device);
+        try {
+            JSONObject message = new JSONObject();
+            message.put("event", event);
+            message.put("device", device.getAddress());
+            message.put("status", status);
+            message.put("mtu", getMtu(device));
+            message.put("txPhy", phyToString(phy == null ? BluetoothDevice.PHY_LE_1M : phy[0]));
+            message.put("rxPhy", phyToString(phy == null ? BluetoothDevice.PHY_LE_1M : phy[1]));
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            result.setKeepCallback(true);
+            connectionStateCallback.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in sendConnectionEvent", e);
+        }
+    }
+
+    private void characteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        if (trace.enabled) {
+            trace.record(Trace.READ_REQUEST, Trace.address(device.getAddress()), trace.symbol(characteristic.getUuid()), requestId, offset);
+        }
+
+        if (readRequestCallback != null && dynamicReads.isEnabled(characteristic)) {
+            // a long read continues with the value it started with
+            byte[] cached = offset > 0
+                    ? dynamicReads.getValue(characteristic)
+                    : dynamicReads.getFreshValue(characteristic, SystemClock.uptimeMillis());
+
+            if (cached == null) {
+                requestReadValue(device, requestId, offset, characteristic);
+            } else {
+                respondToRead(device, requestId, offset, characteristic, cached);
+            }
+            return;
+        }
+
+        respondToRead(device, requestId, offset, characteristic, characteristic.getValue());
+    }
+
+    private void respondToRead(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic, byte[] value) {
+        // the stack sends at most MTU - 1 bytes, a long read continues with the next offset
+        int length = value == null ? 0 : Math.min(Math.max(0, value.length - offset), getMtu(device) - 1);
+        metrics.read(characteristic.getUuid(), device.getAddress(), length);
+        sendReadResponse(device, requestId, offset, characteristic, value);
+    }
+
+    // Ask JavaScript for the value. Reads that arrive before the answer wait for the same answer.
+    private void requestReadValue(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        final int id = dynamicReads.request(characteristic, device, requestId, offset);
+        if (id < 0) {
+            return;
+        }
+
+        try {
+            JSONObject message = new JSONObject();
+            message.put("id", id);
+            message.put("device", device.getAddress());
+            message.put("service", characteristic.getService().getUuid().toString());
+            message.put("characteristic", characteristic.getUuid().toString());
+            message.put("offset", offset);
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            result.setKeepCallback(true);
+            readRequestCallback.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in requestReadValue", e);
+        }
+
+        // the central is waiting, fall back to the last known value if JavaScript is slow
+        eventLoop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                readValueReceived(id, null);
+            }
+        }, dynamicReads.getDeadline(characteristic));
+    }
+
+    // value is null when the deadline passed or JavaScript couldn't answer
+    private void readValueReceived(int id, byte[] value) {
+        List<DynamicReads.Read<BluetoothGattCharacteristic, BluetoothDevice>> reads = dynamicReads.complete(id, value, SystemClock.uptimeMillis());
+        if (reads == null) {
+            return; // already answered
+        }
+
+        for (DynamicReads.Read<BluetoothGattCharacteristic, BluetoothDevice> read : reads) {
+            byte[] response = dynamicReads.getValue(read.attribute);
+            if (response == null) {
+                response = read.attribute.getValue();
+            }
+            respondToRead(read.device, read.requestId, read.offset, read.attribute, response);
+        }
+    }
+
+    private void characteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value, long received) {
+        if (trace.enabled) {
+            trace.record(Trace.WRITE_REQUEST, Trace.address(device.getAddress()), trace.symbol(characteristic.getUuid()), requestId, value == null ? 0 : value.length);
+        }
+        metrics.write(characteristic.getUuid(), device.getAddress(), value == null ? 0 : value.length);
+
+        if (preparedWrite) {
+            // hold the fragment until onExecuteWrite
+            PreparedWriteBuffer<BluetoothGattCharacteristic> buffer = preparedWrites.get(device);
+            if (buffer == null) {
+                buffer = new PreparedWriteBuffer<>();
+                preparedWrites.put(device, buffer);
+            }
+            int accepted = buffer.write(characteristic, offset, value == null ? new byte[0] : value);
+
+            if (responseNeeded) {
+                int status = BluetoothGatt.GATT_SUCCESS;
+                if (accepted == PreparedWriteBuffer.INVALID_OFFSET) {
+                    status = BluetoothGatt.GATT_INVALID_OFFSET;
+                } else if (accepted == PreparedWriteBuffer.INVALID_LENGTH) {
+                    status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                }
+                transport.sendResponse(device, requestId, status, offset, value);
+            }
+            return;
+        }
+
+        WriteFilter<BluetoothDevice> filter = writeFilters.get(characteristic);
+        long now = SystemClock.uptimeMillis();
+        int result = filter == null ? WriteFilter.FORWARD : filter.check(device, value, now);
+
+        if (result != WriteFilter.FORWARD) {
+            writeFiltered(device, requestId, characteristic, result);
+        }
+        if (filter != null && writeStatus(result) == BluetoothGatt.GATT_SUCCESS) {
+            filter.accept(device, value, now);
+        }
+
+        if (responseNeeded) {
+            // respond before handing the value to JavaScript
+            transport.sendResponse(device, requestId, writeStatus(result), offset, value);
+        }
+
+        if (result == WriteFilter.FORWARD) {
+            forwardWrite(device, characteristic, value, filter, received);
+        }
+    }
+
+    // the ATT status for a WriteFilter result, dropped duplicates still succeed
+    private static int writeStatus(int result) {
+        if (result == WriteFilter.INVALID_LENGTH) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        } else if (result == WriteFilter.RATE_LIMITED) {
+            return ATT_INSUFFICIENT_RESOURCES;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    private void writeFiltered(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, int reason) {
+        if (trace.enabled) {
+            trace.record(Trace.WRITE_FILTERED, Trace.address(device.getAddress()), trace.symbol(characteristic.getUuid()), requestId, reason);
+        }
+        metrics.writeFiltered(characteristic.getUuid(), device.getAddress());
+    }
+
+    // With a conflation window only the latest value written in the window is sent to JavaScript
+    private void forwardWrite(final BluetoothDevice device, final BluetoothGattCharacteristic characteristic, byte[] value, final WriteFilter<BluetoothDevice> filter, long received) {
+        if (filter == null || filter.getConflateMillis() <= 0) {
+            sendCharacteristicValueChanged(characteristic, value, received);
+            return;
+        }
+
+        if (filter.conflate(device, value, received)) {
+            eventLoop.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    long latestReceived = filter.getConflatedReceived(device);
+                    byte[] latest = filter.takeConflated(device);
+                    if (latest != null) {
+                        sendCharacteristicValueChanged(characteristic, latest, latestReceived);
+                    }
+                }
+            }, filter.getConflateMillis());
+        } else {
+            // replaced the value waiting in this window
+            metrics.writeFiltered(characteristic.getUuid(), device.getAddress());
+        }
+    }
+
+    private void descriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean responseNeeded, byte[] value) {
+        if (trace.enabled) {
+            // the first byte is enough to tell the Client Characteristic Configuration values apart
+            long first = value == null || value.length == 0 ? -1 : value[0] & 0xFF;
+            trace.record(Trace.DESCRIPTOR_WRITE, Trace.address(device.getAddress()), trace.symbol(descriptor.getUuid()), requestId, first);
+        }
+
+        if (CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+            BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+
+            if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
+                subscriptions.subscribe(characteristic, device, SubscriptionIndex.NOTIFY);
+            } else if (Arrays.equals(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE, value)) {
+                subscriptions.subscribe(characteristic, device, SubscriptionIndex.INDICATE);
+            } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
+                subscriptions.unsubscribe(characteristic, device);
+            }
+
+            if (responseNeeded) {
+                transport.sendResponse(device,
+                        requestId,
+                        BluetoothGatt.GATT_SUCCESS,
+                        0,
+                        null);
+            }
+        } else {
+            // TODO allow other descriptors to be written
+            Log.w(TAG, "Unknown descriptor write request");
+            if (responseNeeded) {
+                transport.sendResponse(device,
+                        requestId,
+                        BluetoothGatt.GATT_FAILURE,
+                        0,
+                        null);
+            }
+        }
+    }
+
+    private void descriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+        if (trace.enabled) {
+            trace.record(Trace.DESCRIPTOR_READ, Trace.address(device.getAddress()), trace.symbol(descriptor.getUuid()), requestId, offset);
+        }
+
+        byte[] value = descriptor.getValue();
+
+        // each device has its own subscription state
+        if (CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+            value = getClientCharacteristicConfiguration(descriptor.getCharacteristic(), device);
+        }
+
+        sendReadResponse(device, requestId, offset, descriptor, value);
+    }
+
+    // received is when the execute write arrived, the reassembled values are complete then
+    private void executeWrite(BluetoothDevice device, int requestId, boolean execute, long received) {
+        if (trace.enabled) {
+            trace.record(Trace.EXECUTE_WRITE, Trace.address(device.getAddress()), -1, requestId, execute ? 1 : 0);
+        }
+
+        // cancel discards the fragments
+        PreparedWriteBuffer<BluetoothGattCharacteristic> buffer = preparedWrites.remove(device);
+        if (!execute || buffer == null) {
+            transport.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            return;
+        }
+
+        // filter every reassembled value before responding, the queue is executed as a
+        // whole so one rejected value fails the execute write and nothing is forwarded
+        Map<BluetoothGattCharacteristic, byte[]> values = buffer.values();
+        Map<BluetoothGattCharacteristic, Integer> results = new LinkedHashMap<>();
+        int status = BluetoothGatt.GATT_SUCCESS;
+        long now = SystemClock.uptimeMillis();
+        for (Map.Entry<BluetoothGattCharacteristic, byte[]> entry : values.entrySet()) {
+            WriteFilter<BluetoothDevice> filter = writeFilters.get(entry.getKey());
+            int result = filter == null ? WriteFilter.FORWARD : filter.check(device, entry.getValue(), now);
+            results.put(entry.getKey(), result);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                status = writeStatus(result);
+            }
+        }
+
+        transport.sendResponse(device, requestId, status, 0, null);
+
+        // the filters only count writes from an execute that was accepted
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            for (Map.Entry<BluetoothGattCharacteristic, byte[]> entry : values.entrySet()) {
+                WriteFilter<BluetoothDevice> filter = writeFilters.get(entry.getKey());
+                if (filter != null) {
+                    filter.accept(device, entry.getValue(), now);
+                }
+            }
+        }
+
+        // one event per characteristic with the reassembled value
+        for (Map.Entry<BluetoothGattCharacteristic, Integer> entry : results.entrySet()) {
+            BluetoothGattCharacteristic characteristic = entry.getKey();
+            int result = entry.getValue();
+            if (result == WriteFilter.FORWARD && status == BluetoothGatt.GATT_SUCCESS) {
+                forwardWrite(device, characteristic, values.get(characteristic), writeFilters.get(characteristic), received);
+            } else {
+                writeFiltered(device, requestId, characteristic, result);
+            }
+        }
+    }
+
+    private void sendCharacteristicValueChanged(BluetoothGattCharacteristic characteristic, byte[] value, long received) {
+        if (characteristicValueChangedCallback == null) {
+            return;
+        }
+
+        WriteEvent event = new WriteEvent(characteristic.getService().getUuid(), characteristic.getUuid(), value, received);
+
+        if (writeEventBatcher.isEnabled()) {
+            writeEventBatcher.add(event);
+        } else {
+            sendWriteEvents(Collections.singletonList(event));
+        }
+    }
+
+    // a single event is sent as an object, batches as an array, or both as one binary frame
+    private void sendWriteEvents(List<WriteEvent> events) {
+        if (characteristicValueChangedCallback == null) {
+            return;
+        }
+
+        try {
+            PluginResult result;
+            if (binaryWriteEvents) {
+                result = new PluginResult(PluginResult.Status.OK, WriteEvent.encodeFrame(events));
+            } else if (events.size() == 1 && !writeEventBatcher.isEnabled()) {
+                result = new PluginResult(PluginResult.Status.OK, writeEventToJSON(events.get(0)));
+            } else {
+                JSONArray array = new JSONArray();
+                for (WriteEvent event : events) {
+                    array.put(writeEventToJSON(event));
+                }
+                result = new PluginResult(PluginResult.Status.OK, array);
+            }
+            result.setKeepCallback(true);
+            characteristicValueChangedCallback.sendPluginResult(result);
+
+            long now = System.nanoTime();
+            for (WriteEvent event : events) {
+                metrics.writeDelivered(event.characteristic, (now - event.received) / 1000);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in sendWriteEvents", e);
+        }
+    }
+
+    private JSONObject writeEventToJSON(WriteEvent event) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("service", event.service.toString());
+        message.put("characteristic", event.characteristic.toString());
+        message.put("value", byteArrayToJSON(event.value));
+        return message;
+    }
+
+    // Long reads arrive as multiple requests, respond with the value starting at offset
+    private void sendReadResponse(BluetoothDevice device, int requestId, int offset, Object attribute, byte[] value) {
+        byte[] slice = longReadCache.slice(attribute, value, offset);
+
+        if (slice == null) {
+            transport.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+        } else {
+            transport.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, slice);
+        }
+    }
+
+    // Builds the service and fills handles with { service, characteristics: { uuid: handle } }.
+    // The service is added to the services map but not to the GATT server.
+    private BluetoothGattService serviceFromJSON(JSONObject json, JSONObject handles) throws JSONException {
+        return serviceFromSchema(GattSchema.fromJSON(json), handles);
+    }
+
+    // Creates the Android service from a JSON or binary definition, see serviceFromJSON
+    private BluetoothGattService serviceFromSchema(GattSchema.Service schema, JSONObject handles) throws JSONException {
+        BluetoothGattService service = new BluetoothGattService(schema.uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        // characteristic uuid -> handle
+        JSONObject characteristicHandlesJSON = new JSONObject();
+
+        for (GattSchema.Characteristic schemaCharacteristic : schema.characteristics) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(schemaCharacteristic.uuid,
+                    schemaCharacteristic.properties, schemaCharacteristic.permissions);
+            if (schemaCharacteristic.value.length > 0) {
+                characteristic.setValue(schemaCharacteristic.value);
+            }
+
+            // If notify or indicate, add the 2902 descriptor
+            if (isNotify(characteristic) || isIndicate(characteristic)) {
+                characteristic.addDescriptor(createClientCharacteristicConfigurationDescriptor());
+            }
+
+            if ((schemaCharacteristic.flags & GattSchema.FLAG_CONFLATE_NOTIFICATIONS) != 0) {
+                fanout.setConflated(characteristic, true);
+            }
+
+            if (schemaCharacteristic.writeFilter != null) {
+                writeFilters.put(characteristic, newWriteFilter(schemaCharacteristic.writeFilter));
+            }
+
+            for (GattSchema.Descriptor schemaDescriptor : schemaCharacteristic.descriptors) {
+                BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(schemaDescriptor.uuid, schemaDescriptor.permissions);
+
+                if (!characteristic.addDescriptor(descriptor)) {
+                    throw new JSONException("Failed to add descriptor " + schemaDescriptor.uuid);
+                }
+
+                if (!descriptor.setValue(schemaDescriptor.value)) {
+                    throw new JSONException("Failed to set descriptor value for " + schemaDescriptor.uuid);
+                }
+            }
+
+            service.addCharacteristic(characteristic);
+            // the same key whether the service came from JSON or a schema
+            characteristicHandlesJSON.put(UUIDHelper.uuidToString(schemaCharacteristic.uuid), characteristicHandles.add(characteristic));
         }
+
+        services.put(schema.uuid, service);
+
+        handles.put("service", serviceHandles.add(service));
+        handles.put("characteristics", characteristicHandlesJSON);
+        return service;
     }
 
-    private BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            super.onConnectionStateChange(device, status, newState);
-            Log.d(TAG, "onConnectionStateChange status=" + status + "->" + newState);
+    // Memory maps a schema compiled with compileServices. Assets must be stored
+    // uncompressed to be mapped, other paths are relative to the app's files directory.
+    private ByteBuffer mapSchema(String path) throws IOException {
+        if (path.startsWith(ASSET_PREFIX)) {
+            AssetFileDescriptor descriptor = cordova.getActivity().getAssets().openFd(path.substring(ASSET_PREFIX.length()));
+            try {
+                FileChannel channel = descriptor.createInputStream().getChannel();
+                try {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getLength());
+                } finally {
+                    channel.close();
+                }
+            } finally {
+                descriptor.close();
+            }
+        }
+
+        RandomAccessFile file = new RandomAccessFile(schemaFile(path), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    private File schemaFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(cordova.getActivity().getFilesDir(), path);
+    }
 
-            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                registeredDevices.remove(device);
+    // Queues the service for the GATT server, the callback runs when onServiceAdded arrives
+    private void publishService(BluetoothGattService service, final ServicePipeline.Callback<BluetoothGattService> callback) {
+        servicePipeline.add(service, new ServicePipeline.Callback<BluetoothGattService>() {
+            @Override
+            public void onServiceAdded(BluetoothGattService service, int status, long micros) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    publishedServices.add(service);
+                }
+                callback.onServiceAdded(service, status, micros);
             }
+        });
+    }
 
+    // Adds a GATT table through the pipeline. The callback gets
+    // { parseMicros, elapsed, services: [{ uuid, status, micros, handles }] } in table order,
+    // and is rejected with the same object if any service failed.
+    private void publishServices(List<BluetoothGattService> table, List<JSONObject> tableHandles, final long parseMicros, final CallbackContext callbackContext) {
+        final long start = SystemClock.uptimeMillis();
+        final JSONArray results = new JSONArray();
+        final int[] remaining = { table.size() };
+        final boolean[] failed = { false };
+
+        if (table.isEmpty()) {
+            callbackContext.success(servicesResultToJSON(results, start, parseMicros));
+            return;
         }
 
-        @Override
-        public void onServiceAdded(int status, BluetoothGattService service) {
-            Log.d(TAG, "onServiceAdded status=" + service + "->" + service);
-            super.onServiceAdded(status, service);
+        for (int i = 0; i < table.size(); i++) {
+            final JSONObject result = new JSONObject();
+            try {
+                result.put("uuid", UUIDHelper.uuidToString(table.get(i).getUuid()));
+                result.put("handles", tableHandles.get(i));
+                results.put(result);
+            } catch (JSONException e) {
+                Log.e(TAG, "Error creating service JSON", e);
+            }
+
+            publishService(table.get(i), new ServicePipeline.Callback<BluetoothGattService>() {
+                @Override
+                public void onServiceAdded(BluetoothGattService service, int status, long micros) {
+                    try {
+                        result.put("status", status);
+                        result.put("micros", micros);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Error creating service JSON", e);
+                    }
+                    failed[0] |= status != BluetoothGatt.GATT_SUCCESS;
+
+                    if (--remaining[0] == 0) {
+                        if (failed[0]) {
+                            callbackContext.error(servicesResultToJSON(results, start, parseMicros));
+                        } else {
+                            callbackContext.success(servicesResultToJSON(results, start, parseMicros));
+                        }
+                    }
+                }
+            });
         }
+    }
 
-        @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-            Log.d(TAG, "onCharacteristicReadRequest requestId=" + requestId + " offset=" + offset);
+    private JSONObject servicesResultToJSON(JSONArray results, long start, long parseMicros) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("parseMicros", parseMicros);
+            json.put("elapsed", SystemClock.uptimeMillis() - start);
+            json.put("services", results);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating service JSON", e);
+        }
+        return json;
+    }
+
+    // resolves a single service action once the GATT server has the service
+    private abstract class ServiceAddedCallback implements ServicePipeline.Callback<BluetoothGattService> {
+        final CallbackContext callbackContext;
 
-            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
+        ServiceAddedCallback(CallbackContext callbackContext) {
+            this.callbackContext = callbackContext;
         }
 
+        abstract void success(long micros);
+
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-            Log.d(TAG, "onCharacteristicWriteRequest characteristic=" + characteristic.getUuid() + " value=" + Arrays.toString(value));
+        public void onServiceAdded(BluetoothGattService service, int status, long micros) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "Successfully added service " + service.getUuid());
+                success(micros);
+            } else if (status == ServicePipeline.STATUS_TIMEOUT) {
+                callbackContext.error("Timed out adding " + service.getUuid() + " to GATT Server");
+            } else {
+                callbackContext.error("Error adding " + service.getUuid() + " to GATT Server, status " + status);
+            }
+        }
+    }
 
-            if (characteristicValueChangedCallback != null) {
-                try {
-                    JSONObject message = new JSONObject();
-                    message.put("service", characteristic.getService().getUuid().toString());
-                    message.put("characteristic", characteristic.getUuid().toString());
-                    message.put("value", byteArrayToJSON(value));
-
-                    PluginResult result = new PluginResult(PluginResult.Status.OK, message);
-                    result.setKeepCallback(true);
-                    characteristicValueChangedCallback.sendPluginResult(result);
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON encoding failed in onCharacteristicWriteRequest", e);
+    // Listens for L2CAP channels and writes the PSM to the characteristic, so centrals
+    // can read it. Returns an error message or null.
+    private String startL2capServer(boolean secure, BluetoothGattCharacteristic psmCharacteristic) {
+        BluetoothServerSocket serverSocket;
+        try {
+            serverSocket = secure ? bluetoothAdapter.listenUsingL2capChannel() : bluetoothAdapter.listenUsingInsecureL2capChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening L2CAP server", e);
+            return "Error opening L2CAP server: " + e.getMessage();
+        }
+
+        l2capServer = new L2capServer(serverSocket, l2capListener);
+        l2capServer.start();
+        l2capStarted = true;
+        l2capSecure = secure;
+        l2capPsmCharacteristic = psmCharacteristic;
+
+        int psm = l2capServer.getPsm();
+        Log.d(TAG, "Listening for L2CAP channels on PSM " + psm);
+        if (psmCharacteristic != null) {
+            setL2capPsm(psmCharacteristic, psm);
+        }
+        return null;
+    }
+
+    // Sets the PSM characteristic as a little endian uint16 and notifies subscribed centrals,
+    // so they don't keep a PSM from before a restart or recovery
+    private void setL2capPsm(final BluetoothGattCharacteristic characteristic, int psm) {
+        byte[] value = new byte[] { (byte) psm, (byte) (psm >> 8) };
+        characteristic.setValue(value);
+
+        if (isNotify(characteristic) || isIndicate(characteristic)) {
+            Map<BluetoothDevice, Integer> subscribers = subscriptions.getSubscribers(characteristic);
+            NotificationRequest<BluetoothGattCharacteristic> request = new NotificationRequest<>(new NotificationRequest.Listener() {
+                @Override
+                public void onComplete(String error) {
+                    if (error != null) {
+                        Log.w(TAG, "Error notifying L2CAP PSM " + characteristic.getUuid() + ": " + error);
+                    }
                 }
-            }
+            }, subscribers.size());
+            fanout.queue(notifications, characteristic, value, request, null);
+        }
+    }
 
-            if (responseNeeded) {
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-            }
+    private L2capServer.Channel getL2capChannel(int id) {
+        return l2capServer == null ? null : l2capServer.getChannel(id);
+    }
 
+    // [{ channel, device, bytesSent, bytesReceived, queuedBytes, unacknowledgedBytes, elapsed, sendBytesPerSecond, receiveBytesPerSecond }]
+    private JSONArray getL2capStats() throws JSONException {
+        JSONArray stats = new JSONArray();
+        if (l2capServer == null) {
+            return stats;
         }
 
-        @Override
-        public void onNotificationSent(BluetoothDevice device, int status) {
-            super.onNotificationSent(device, status);
-            Log.d(TAG, "onNotificationSent device=" + device + " status=" + status);
+        long now = SystemClock.elapsedRealtime();
+        for (L2capServer.Channel channel : l2capServer.getChannels()) {
+            long elapsed = Math.max(1, now - channel.opened);
+            JSONObject json = new JSONObject();
+            json.put("channel", channel.id);
+            json.put("device", channel.address);
+            json.put("bytesSent", channel.getBytesSent());
+            json.put("bytesReceived", channel.getBytesReceived());
+            json.put("queuedBytes", channel.getQueuedBytes());
+            json.put("unacknowledgedBytes", channel.getUnacknowledgedBytes());
+            json.put("elapsed", elapsed);
+            json.put("sendBytesPerSecond", channel.getBytesSent() * 1000 / elapsed);
+            json.put("receiveBytesPerSecond", channel.getBytesReceived() * 1000 / elapsed);
+            stats.put(json);
         }
+        return stats;
+    }
 
+    // Channel events arrive on the L2CAP threads. Received data is sent as a binary frame,
+    // uint32 channel id then the data, everything else as JSON.
+    private L2capServer.Listener l2capListener = new L2capServer.Listener() {
         @Override
-        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
-            Log.d(TAG, "onDescriptorWriteRequest");
-            Log.d(TAG, Arrays.toString(value));
-
-            if (CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
-                if (Arrays.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, value)) {
-                    Log.d(TAG, "Subscribe device to notifications: " + device);
-                    registeredDevices.add(device);
-                } else if (Arrays.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, value)) {
-                    Log.d(TAG, "Unsubscribe device from notifications: " + device);
-                    registeredDevices.remove(device);
+        public void onOpen(final L2capServer.Channel channel) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    JSONObject json = new JSONObject();
+                    try {
+                        json.put("event", "open");
+                        json.put("channel", channel.id);
+                        json.put("device", channel.address);
+                        json.put("maxTransmitPacketSize", channel.socket.getMaxTransmitPacketSize());
+                        json.put("maxReceivePacketSize", channel.socket.getMaxReceivePacketSize());
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Error creating L2CAP JSON", e);
+                    }
+                    sendL2capEvent(new PluginResult(PluginResult.Status.OK, json));
                 }
+            });
+        }
 
-                if (responseNeeded) {
-                    gattServer.sendResponse(device,
-                            requestId,
-                            BluetoothGatt.GATT_SUCCESS,
-                            0,
-                            null);
+        @Override
+        public void onData(L2capServer.Channel channel, byte[] buffer, int length) {
+            final byte[] frame = ByteBuffer.allocate(4 + length).putInt(channel.id).put(buffer, 0, length).array();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    sendL2capEvent(new PluginResult(PluginResult.Status.OK, frame));
                 }
-            } else {
-                // TODO allow other descriptors to be written
-                Log.w(TAG, "Unknown descriptor write request");
-                if (responseNeeded) {
-                    gattServer.sendResponse(device,
-                            requestId,
-                            BluetoothGatt.GATT_FAILURE,
-                            0,
-                            null);
+            });
+        }
+
+        @Override
+        public void onClosed(final L2capServer.Channel channel, final String reason) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    JSONObject json = new JSONObject();
+                    try {
+                        json.put("event", "closed");
+                        json.put("channel", channel.id);
+                        json.put("device", channel.address);
+                        json.put("reason", reason);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Error creating L2CAP JSON", e);
+                    }
+                    sendL2capEvent(new PluginResult(PluginResult.Status.OK, json));
                 }
-            }
+            });
+        }
+    };
 
+    private void sendL2capEvent(PluginResult result) {
+        if (l2capCallback != null) {
+            result.setKeepCallback(true);
+            l2capCallback.sendPluginResult(result);
         }
+    }
 
-        @Override
-        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
-            super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-            Log.d(TAG, "onDescriptorReadRequest device=" + device + " descriptor=" + descriptor.getUuid());
+    // Uses an extended advertising set when the profile asks for one and the controller
+    // supports it, otherwise legacy advertising with the data packed into 31 bytes.
+    private void startAdvertising(AdvertisingProfile profile, String name, CallbackContext callbackContext) {
+        BluetoothLeAdvertiser bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        if (bluetoothLeAdvertiser == null) {
+            if (callbackContext != null) {
+                callbackContext.error("Bluetooth LE advertising is not available");
+            }
+            return;
+        }
+
+        int nameLength = name == null ? 0 : name.getBytes(Charset.forName("UTF-8")).length;
 
-            gattServer.sendResponse(device,
-                            requestId,
-                            BluetoothGatt.GATT_SUCCESS,
-                            0,
-                            descriptor.getValue());
+        advertisingExtended = profile.extended && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bluetoothAdapter.isLeExtendedAdvertisingSupported();
+        advertisingStartedCallback = callbackContext;
 
+        if (advertisingExtended) {
+            // the set isn't scannable, everything goes in the advertisement
+            int maxLength = bluetoothAdapter.getLeMaximumAdvertisingDataLength();
+            advertisement = AdvertisementPacker.pack(profile, nameLength, maxLength, false);
+
+            // duration is in 10ms units
+            int duration = Math.min(profile.timeoutMillis / 10, 0xFFFF);
+            bluetoothLeAdvertiser.startAdvertisingSet(getAdvertisingSetParameters(profile), getAdvertisementData(advertisement.advertisement),
+                    null, null, null, duration, 0, advertisingSetCallback);
+        } else {
+            if (profile.extended) {
+                Log.w(TAG, "Extended advertising is not supported, using legacy advertising");
+            }
+            advertisement = AdvertisementPacker.pack(profile, nameLength, AdvertisementPacker.LEGACY_LENGTH, true);
+            bluetoothLeAdvertiser.startAdvertising(getAdvertiseSettings(profile), getAdvertisementData(advertisement.advertisement),
+                    getAdvertisementData(advertisement.scanResponse), advertiseCallback);
         }
 
-        @Override
-        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
-            super.onExecuteWrite(device, requestId, execute);
-            Log.d(TAG, "onExecuteWrite");
+        for (String field : advertisement.dropped) {
+            Log.w(TAG, "Advertisement is too long, leaving out " + field);
         }
+    }
 
-    };
+    private void stopAdvertising() {
+        BluetoothLeAdvertiser bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        if (advertisement == null || bluetoothLeAdvertiser == null) {
+            return;
+        }
+
+        if (advertisingExtended) {
+            bluetoothLeAdvertiser.stopAdvertisingSet(advertisingSetCallback);
+        } else {
+            bluetoothLeAdvertiser.stopAdvertising(advertiseCallback);
+        }
+        advertisement = null;
+
+        // stopped before the start was confirmed
+        if (advertisingStartedCallback != null) {
+            advertisingStartedCallback.error("Advertising stopped");
+            advertisingStartedCallback = null;
+        }
+    }
 
     // https://github.com/don/uribeacon/blob/58c31cf28d06a80880b0ed46b005204821fd623f/beacons/android/app/src/main/java/org/uribeacon/example/beacon/UriBeaconAdvertiserActivity.java
-    private AdvertiseData getAdvertisementData(UUID serviceUuid) {
+    private AdvertiseData getAdvertisementData(AdvertisementPacker.Packet packet) {
         AdvertiseData.Builder builder = new AdvertiseData.Builder();
-        builder.setIncludeTxPowerLevel(false); // reserve advertising space for URI
+        builder.setIncludeTxPowerLevel(packet.includeTxPower);
+        builder.setIncludeDeviceName(packet.includeName);
 
-        builder.addServiceUuid(new ParcelUuid(serviceUuid)); // TODO accept multiple services in the future
-        builder.setIncludeDeviceName(true);
+        for (UUID serviceUuid : packet.serviceUuids) {
+            builder.addServiceUuid(new ParcelUuid(serviceUuid));
+        }
+        for (Map.Entry<UUID, byte[]> entry : packet.serviceData.entrySet()) {
+            builder.addServiceData(new ParcelUuid(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<Integer, byte[]> entry : packet.manufacturerData.entrySet()) {
+            builder.addManufacturerData(entry.getKey(), entry.getValue());
+        }
         return builder.build();
     }
 
-    private AdvertiseSettings getAdvertiseSettings() {
+    private AdvertiseSettings getAdvertiseSettings(AdvertisingProfile profile) {
         AdvertiseSettings.Builder builder = new AdvertiseSettings.Builder();
-        //builder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED);
-        builder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY);
-        builder.setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH);
-        builder.setConnectable(true);
+        builder.setAdvertiseMode(profile.mode);
+        builder.setTxPowerLevel(profile.txPower);
+        builder.setConnectable(profile.connectable);
+        builder.setTimeout(profile.timeoutMillis);
+
+        return builder.build();
+    }
+
+    private AdvertisingSetParameters getAdvertisingSetParameters(AdvertisingProfile profile) {
+        // interval is in 0.625ms units
+        int interval = (int) (profile.getIntervalMillis() / 0.625);
+        interval = Math.max(AdvertisingSetParameters.INTERVAL_MIN, Math.min(interval, AdvertisingSetParameters.INTERVAL_MAX));
+
+        int txPower;
+        switch (profile.txPower) {
+            case AdvertisingProfile.TX_POWER_ULTRA_LOW:
+                txPower = AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+                break;
+            case AdvertisingProfile.TX_POWER_LOW:
+                txPower = AdvertisingSetParameters.TX_POWER_LOW;
+                break;
+            case AdvertisingProfile.TX_POWER_MEDIUM:
+                txPower = AdvertisingSetParameters.TX_POWER_MEDIUM;
+                break;
+            default:
+                txPower = AdvertisingSetParameters.TX_POWER_HIGH;
+        }
+
+        AdvertisingSetParameters.Builder builder = new AdvertisingSetParameters.Builder();
+        builder.setLegacyMode(false);
+        builder.setConnectable(profile.connectable);
+        // an extended set can't be both connectable and scannable, and a scannable
+        // set must keep its data in the scan response, so it's never scannable
+        builder.setScannable(false);
+        builder.setInterval(interval);
+        builder.setTxPowerLevel(txPower);
 
         return builder.build();
     }
 
+    // mode: lowPower, balanced or lowLatency, txPower: ultraLow, low, medium or high
+    // null for an unknown profile name
+    private AdvertisingProfile advertisingProfileFromJSON(JSONObject json) throws JSONException {
+        AdvertisingProfile profile = AdvertisingProfile.preset(json.optString("profile", "fastDiscovery"));
+        if (profile == null) {
+            return null;
+        }
+
+        if (json.has("mode")) {
+            String mode = json.getString("mode");
+            if (mode.equals("lowPower")) {
+                profile.mode = AdvertisingProfile.MODE_LOW_POWER;
+            } else if (mode.equals("balanced")) {
+                profile.mode = AdvertisingProfile.MODE_BALANCED;
+            } else if (mode.equals("lowLatency")) {
+                profile.mode = AdvertisingProfile.MODE_LOW_LATENCY;
+            } else {
+                throw new JSONException("Unknown advertising mode " + mode);
+            }
+        }
+
+        if (json.has("txPower")) {
+            String txPower = json.getString("txPower");
+            if (txPower.equals("ultraLow")) {
+                profile.txPower = AdvertisingProfile.TX_POWER_ULTRA_LOW;
+            } else if (txPower.equals("low")) {
+                profile.txPower = AdvertisingProfile.TX_POWER_LOW;
+            } else if (txPower.equals("medium")) {
+                profile.txPower = AdvertisingProfile.TX_POWER_MEDIUM;
+            } else if (txPower.equals("high")) {
+                profile.txPower = AdvertisingProfile.TX_POWER_HIGH;
+            } else {
+                throw new JSONException("Unknown TX power " + txPower);
+            }
+        }
+
+        profile.connectable = json.optBoolean("connectable", profile.connectable);
+        profile.timeoutMillis = Math.max(0, Math.min(json.optInt("timeout", 0), AdvertisingProfile.MAX_TIMEOUT_MILLIS));
+        profile.intervalMillis = json.optInt("interval", 0);
+        profile.includeName = json.optBoolean("includeName", profile.includeName);
+        profile.includeTxPower = json.optBoolean("includeTxPower", profile.includeTxPower);
+        profile.extended = json.optBoolean("extended", false);
+
+        // values are Base64 encoded
+        JSONArray serviceData = json.optJSONArray("serviceData");
+        if (serviceData != null) {
+            for (int i = 0; i < serviceData.length(); i++) {
+                JSONObject entry = serviceData.getJSONObject(i);
+                profile.serviceData.put(uuidFromString(entry.getString("uuid")), Base64.decode(entry.getString("data"), Base64.NO_WRAP));
+            }
+        }
+
+        JSONArray manufacturerData = json.optJSONArray("manufacturerData");
+        if (manufacturerData != null) {
+            for (int i = 0; i < manufacturerData.length(); i++) {
+                JSONObject entry = manufacturerData.getJSONObject(i);
+                profile.manufacturerData.put(entry.getInt("id"), Base64.decode(entry.getString("data"), Base64.NO_WRAP));
+            }
+        }
+
+        return profile;
+    }
+
+    // { extended: true, dropped: ['name (10 bytes)'] }
+    private JSONObject advertisementToJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("extended", advertisingExtended);
+            JSONArray dropped = new JSONArray();
+            if (advertisement != null) {
+                for (String field : advertisement.dropped) {
+                    dropped.put(field);
+                }
+            }
+            json.put("dropped", dropped);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating advertisement JSON", e);
+        }
+        return json;
+    }
+
     private AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
         @Override
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
             super.onStartSuccess(settingsInEffect);
-            Log.d(TAG, "onStartSuccess");
-            if (advertisingStartedCallback != null) {
-                advertisingStartedCallback.success();
-            }
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onStartSuccess");
+                    if (advertisingStartedCallback != null) {
+                        advertisingStartedCallback.success(advertisementToJSON());
+                        advertisingStartedCallback = null;
+                    }
+                }
+            });
         }
 
         @Override
-        public void onStartFailure(int errorCode) {
+        public void onStartFailure(final int errorCode) {
             super.onStartFailure(errorCode);
-            Log.d(TAG, "onStartFailure");
-            if (advertisingStartedCallback != null) {
-                advertisingStartedCallback.error(errorCode);
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onStartFailure");
+                    if (advertisingStartedCallback != null) {
+                        advertisingStartedCallback.error(errorCode);
+                        advertisingStartedCallback = null;
+                    }
+                    advertisement = null;
+                }
+            });
+        }
+    };
+
+    private AdvertisingSetCallback advertisingSetCallback = new AdvertisingSetCallback() {
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, final int txPower, final int status) {
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onAdvertisingSetStarted " + status + " txPower " + txPower);
+                    if (advertisingStartedCallback != null) {
+                        if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                            advertisingStartedCallback.success(advertisementToJSON());
+                        } else {
+                            advertisingStartedCallback.error(status);
+                        }
+                        advertisingStartedCallback = null;
+                    }
+                    if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                        advertisement = null;
+                    }
+                }
+            });
+        }
+    };
+
+    private void setCharacteristicValue(BluetoothGattCharacteristic characteristic, byte[] value, CallbackContext callbackContext) {
+        characteristic.setValue(value);
+
+        if (isNotify(characteristic) || isIndicate(characteristic)) {
+            // callback is resolved once all the subscribed devices have the value
+            notifyRegisteredDevices(characteristic, value, callbackContext);
+        } else {
+            callbackContext.success();
+        }
+    }
+
+    // Notifications are queued per device and sent one at a time, the next
+    // notification goes out when onNotificationSent confirms the previous one.
+    private void notifyRegisteredDevices(BluetoothGattCharacteristic characteristic, byte[] value, CallbackContext callbackContext) {
+        Map<BluetoothDevice, Integer> subscribers = subscriptions.getSubscribers(characteristic);
+        NotificationRequest<BluetoothGattCharacteristic> request = new NotificationRequest<>(resolveWhenComplete(callbackContext), subscribers.size());
+
+        fanout.queue(notifications, characteristic, value, request, null);
+    }
+
+    // Set multiple values, then send the notifications in one pass so each device's
+    // queue is filled before sending starts.
+    private void setCharacteristicValues(CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+        int count = countTriples(args);
+        String[] serviceStrings = new String[count];
+        String[] characteristicStrings = new String[count];
+        byte[][] values = new byte[count][];
+        BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[count];
+        String[] errors = new String[count];
+
+        // Read and look up every entry before changing anything, so bad arguments
+        // reject the call without setting or notifying any of the values
+        for (int i = 0; i < count; i++) {
+            serviceStrings[i] = args.getString(i * 3);
+            characteristicStrings[i] = args.getString(i * 3 + 1);
+            values[i] = args.getArrayBuffer(i * 3 + 2);
+
+            UUID serviceUUID;
+            UUID characteristicUUID;
+            try {
+                serviceUUID = uuidFromString(serviceStrings[i]);
+                characteristicUUID = uuidFromString(characteristicStrings[i]);
+            } catch (IllegalArgumentException e) {
+                errors[i] = e.getMessage();
+                continue;
+            }
+
+            BluetoothGattService service = services.get(serviceUUID);
+            if (service == null) {
+                errors[i] = "Service " + serviceStrings[i] + " not found";
+                continue;
+            }
+
+            characteristics[i] = service.getCharacteristic(characteristicUUID);
+            if (characteristics[i] == null) {
+                errors[i] = "Characteristic " + characteristicStrings[i] + " not found on service " + serviceStrings[i];
+            }
+        }
+
+        NotificationBatch batch = new NotificationBatch(callbackContext, count);
+        Map<BluetoothDevice, NotificationQueue<BluetoothGattCharacteristic>> queues = new HashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            BluetoothGattCharacteristic characteristic = characteristics[i];
+            if (characteristic == null) {
+                batch.complete(i, serviceStrings[i], characteristicStrings[i], errors[i]);
+                continue;
+            }
+
+            characteristic.setValue(values[i]);
+
+            if (isNotify(characteristic) || isIndicate(characteristic)) {
+                NotificationRequest.Listener listener = batch.listener(i, serviceStrings[i], characteristicStrings[i]);
+                NotificationRequest<BluetoothGattCharacteristic> request = new NotificationRequest<>(listener, subscriptions.getSubscribers(characteristic).size());
+                fanout.queue(notifications, characteristic, values[i], request, queues);
+            } else {
+                batch.complete(i, serviceStrings[i], characteristicStrings[i], null);
             }
         }
+
+        for (Map.Entry<BluetoothDevice, NotificationQueue<BluetoothGattCharacteristic>> entry : queues.entrySet()) {
+            notifications.send(entry.getKey(), entry.getValue());
+        }
+
+        batch.started();
+    }
+
+    private int countTriples(CordovaArgs args) {
+        int count = 0;
+        while (!args.isNull(count * 3)) {
+            count++;
+        }
+        return count;
+    }
+
+    private void streamToRegisteredDevices(BluetoothGattCharacteristic characteristic, byte[] value, CallbackContext callbackContext) {
+        NotificationStream stream = new NotificationStream(characteristic, value, callbackContext);
+
+        for (Map.Entry<BluetoothDevice, Integer> subscriber : subscriptions.getSubscribers(characteristic).entrySet()) {
+            BluetoothDevice device = subscriber.getKey();
+            boolean confirm = subscriber.getValue() == SubscriptionIndex.INDICATE;
+            NotificationQueue<BluetoothGattCharacteristic> queue = notifications.getQueue(device);
+
+            stream.addDevice(device.getAddress(), queue, getMtu(device) - ATT_HEADER_SIZE, confirm);
+            notifications.send(device, queue);
+        }
+
+        stream.started();
+    }
+
+    private int getMtu(BluetoothDevice device) {
+        Integer mtu = mtus.get(device);
+        return mtu == null ? DEFAULT_MTU : mtu;
+    }
+
+    private byte[] getClientCharacteristicConfiguration(BluetoothGattCharacteristic characteristic, BluetoothDevice device) {
+        switch (subscriptions.getMode(characteristic, device)) {
+            case SubscriptionIndex.NOTIFY:
+                return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+            case SubscriptionIndex.INDICATE:
+                return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+            default:
+                return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        }
+    }
+
+    private void removeDevice(BluetoothDevice device) {
+        subscriptions.removeDevice(device);
+        mtus.remove(device);
+        phys.remove(device);
+        connectedDevices.remove(device.getAddress());
+        preparedWrites.remove(device);
+        notifications.removeDevice(device);
+        metrics.removeDevice(device.getAddress());
+
+        for (WriteFilter<BluetoothDevice> filter : writeFilters.values()) {
+            filter.removeDevice(device);
+        }
+    }
+
+    private JSONArray getNotificationQueueStats() throws JSONException {
+        JSONArray stats = new JSONArray();
+        for (Map.Entry<BluetoothDevice, NotificationQueue<BluetoothGattCharacteristic>> entry : notifications.getQueues().entrySet()) {
+            NotificationQueue<BluetoothGattCharacteristic> queue = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("device", entry.getKey().getAddress());
+            json.put("mtu", getMtu(entry.getKey()));
+            json.put("depth", queue.depth());
+            json.put("sent", queue.getSent());
+            json.put("failed", queue.getFailed());
+            json.put("dropped", queue.getDropped());
+            json.put("conflated", queue.getConflated());
+            stats.put(json);
+        }
+        return stats;
+    }
+
+    private NotificationScheduler.Listener<BluetoothDevice, BluetoothGattCharacteristic> notificationMetrics = new NotificationScheduler.Listener<BluetoothDevice, BluetoothGattCharacteristic>() {
+        @Override
+        public void onNotificationStarted(BluetoothDevice device, BluetoothGattCharacteristic characteristic, int length) {
+            metrics.notificationStarted(characteristic.getUuid(), device.getAddress(), length);
+        }
+
+        @Override
+        public void onNotificationCompleted(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean success, long micros) {
+            metrics.notificationCompleted(characteristic.getUuid(), device.getAddress(), success, micros);
+        }
     };
 
-    private void notifyRegisteredDevices(BluetoothGattCharacteristic characteristic) {
-        boolean confirm = isIndicate(characteristic);
+    // Counters that are zero and empty histograms are left out to keep the snapshot small
+    private JSONObject statisticsToJSON(Metrics.Snapshot snapshot) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("elapsed", snapshot.elapsed);
+        json.put("latencyBuckets", longArrayToJSON(Histogram.BOUNDS));
+
+        JSONObject characteristics = new JSONObject();
+        for (Map.Entry<UUID, Metrics.Stats> entry : snapshot.characteristics.entrySet()) {
+            characteristics.put(UUIDHelper.uuidToString(entry.getKey()), statsToJSON(entry.getValue()));
+        }
+        json.put("characteristics", characteristics);
+
+        JSONObject devices = new JSONObject();
+        for (Map.Entry<String, Metrics.Stats> entry : snapshot.devices.entrySet()) {
+            devices.put(entry.getKey(), statsToJSON(entry.getValue()));
+        }
+        json.put("devices", devices);
+
+        return json;
+    }
+
+    private JSONObject statsToJSON(Metrics.Stats stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < stats.counters.length; i++) {
+            if (stats.counters[i] != 0) {
+                json.put(Metrics.COUNTER_NAMES[i], stats.counters[i]);
+            }
+        }
+        if (stats.writeLatency.count > 0) {
+            json.put("writeLatency", histogramToJSON(stats.writeLatency));
+        }
+        if (stats.notifyLatency.count > 0) {
+            json.put("notifyLatency", histogramToJSON(stats.notifyLatency));
+        }
+        return json;
+    }
+
+    private JSONObject histogramToJSON(Histogram histogram) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", histogram.count);
+        json.put("sum", histogram.sum);
+        json.put("buckets", longArrayToJSON(histogram.buckets));
+        return json;
+    }
+
+    // oldest record first, times are in microseconds
+    private JSONArray traceToJSON() throws JSONException {
+        JSONArray records = new JSONArray();
+        for (int i = 0; i < trace.size(); i++) {
+            int event = trace.getEvent(i);
+            JSONObject record = new JSONObject();
+            record.put("time", trace.getTime(i) / 1000);
+            record.put("event", Trace.EVENT_NAMES[event]);
+
+            if (trace.getDevice(i) != 0) {
+                record.put("device", Trace.address(trace.getDevice(i)));
+            }
+
+            Object symbol = trace.getSymbol(trace.getSymbolIndex(i));
+            if (symbol instanceof UUID) {
+                record.put("attribute", UUIDHelper.uuidToString((UUID) symbol));
+            } else if (symbol != null) {
+                record.put("action", symbol);
+            }
+
+            String[] names = Trace.ARGUMENT_NAMES[event];
+            if (names[0] != null) {
+                record.put(names[0], trace.getA(i));
+            }
+            if (names[1] != null) {
+                record.put(names[1], trace.getB(i));
+            }
+            records.put(record);
+        }
+        return records;
+    }
+
+    // { minLength: 1, maxLength: 20, dropDuplicates: true, conflateMillis: 100, rateLimit: { perSecond: 10, burst: 20 } }
+    private WriteFilter<BluetoothDevice> writeFilterFromJSON(JSONObject json) throws JSONException {
+        return newWriteFilter(GattSchema.writeFilterRulesFromJSON(json));
+    }
+
+    private WriteFilter<BluetoothDevice> newWriteFilter(GattSchema.WriteFilterRules rules) {
+        return new WriteFilter<>(rules.minLength, rules.maxLength, rules.dropDuplicates, rules.conflateMillis, rules.perSecond, rules.burst);
+    }
 
-        for (BluetoothDevice device : registeredDevices) {
-            gattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+    private JSONArray longArrayToJSON(long[] values) {
+        JSONArray array = new JSONArray();
+        for (long value : values) {
+            array.put(value);
         }
+        return array;
     }
 
     // Utils
@@ -594,6 +2632,38 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
         return UUIDHelper.uuidFromString(uuid);
     }
 
+    private int phyMaskFromString(String phy) {
+        if ("1M".equalsIgnoreCase(phy)) {
+            return BluetoothDevice.PHY_LE_1M_MASK;
+        } else if ("2M".equalsIgnoreCase(phy)) {
+            return BluetoothDevice.PHY_LE_2M_MASK;
+        } else if ("coded".equalsIgnoreCase(phy)) {
+            return BluetoothDevice.PHY_LE_CODED_MASK;
+        }
+        return 0;
+    }
+
+    // coding for the coded PHY, S2 is faster and S8 has more range
+    private int phyOptionsFromString(String options) {
+        if ("s2".equalsIgnoreCase(options)) {
+            return BluetoothDevice.PHY_OPTION_S2;
+        } else if ("s8".equalsIgnoreCase(options)) {
+            return BluetoothDevice.PHY_OPTION_S8;
+        }
+        return BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+    }
+
+    private String phyToString(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "coded";
+            default:
+                return "1M";
+        }
+    }
+
     private boolean isNotify(BluetoothGattCharacteristic characteristic) {
         return ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0);
     }
@@ -602,13 +2672,26 @@ public class BLEPeripheralPlugin extends CordovaPlugin {
         return ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0);
     }
 
-    private  JSONObject byteArrayToJSON(byte[] bytes) throws JSONException {
+    private JSONObject byteArrayToJSON(byte[] bytes) throws JSONException {
         JSONObject object = new JSONObject();
         object.put("CDVType", "ArrayBuffer");
         object.put("data", Base64.encodeToString(bytes, Base64.NO_WRAP));
         return object;
     }
 
+    private NotificationRequest.Listener resolveWhenComplete(final CallbackContext callbackContext) {
+        return new NotificationRequest.Listener() {
+            @Override
+            public void onComplete(String error) {
+                if (error == null) {
+                    callbackContext.success();
+                } else {
+                    callbackContext.error(error);
+                }
+            }
+        };
+    }
+
     private BluetoothGattDescriptor createClientCharacteristicConfigurationDescriptor() {
         return new BluetoothGattDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
                 BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
@@ -0,0 +1,126 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Characteristics whose reads are answered by JavaScript. The answer is
+// cached for ttl milliseconds so repeated reads don't cross the bridge, and
+// reads that arrive while JavaScript is working on an answer wait for the
+// same answer. Times are passed in so the caller picks the clock.
+// A is the attribute type and D is the device type.
+class DynamicReads<A, D> {
+
+    private final Map<A, Entry<A, D>> entries = new HashMap<>();
+    private final Map<Integer, Entry<A, D>> pending = new HashMap<>();
+    private int nextId;
+
+    void enable(A attribute, long ttl, long deadline) {
+        Entry<A, D> entry = entries.get(attribute);
+        if (entry == null) {
+            entry = new Entry<>();
+            entries.put(attribute, entry);
+        }
+        entry.ttl = ttl;
+        entry.deadline = deadline;
+        entry.expires = 0;
+    }
+
+    void disable(A attribute) {
+        entries.remove(attribute);
+    }
+
+    boolean isEnabled(A attribute) {
+        return entries.containsKey(attribute);
+    }
+
+    // milliseconds JavaScript has to answer before the fallback value is used
+    long getDeadline(A attribute) {
+        return entries.get(attribute).deadline;
+    }
+
+    // the cached value if it's younger than the ttl, otherwise null
+    byte[] getFreshValue(A attribute, long now) {
+        Entry<A, D> entry = entries.get(attribute);
+        return entry != null && now < entry.expires ? entry.value : null;
+    }
+
+    // the last value from JavaScript regardless of age, or null
+    byte[] getValue(A attribute) {
+        Entry<A, D> entry = entries.get(attribute);
+        return entry == null ? null : entry.value;
+    }
+
+    // Returns the id to send to JavaScript, or -1 if the read joined one that is
+    // already waiting for an answer.
+    int request(A attribute, D device, int requestId, int offset) {
+        Entry<A, D> entry = entries.get(attribute);
+        entry.waiting.add(new Read<>(attribute, device, requestId, offset));
+
+        if (entry.pendingId >= 0) {
+            return -1;
+        }
+
+        entry.pendingId = nextId++;
+        pending.put(entry.pendingId, entry);
+        return entry.pendingId;
+    }
+
+    // Called with the answer from JavaScript, or a null value when the deadline passes.
+    // Returns the reads to respond to, or null if the id was already completed.
+    List<Read<A, D>> complete(int id, byte[] value, long now) {
+        Entry<A, D> entry = pending.remove(id);
+        if (entry == null) {
+            return null;
+        }
+
+        if (value != null) {
+            entry.value = value;
+            entry.expires = now + entry.ttl;
+        }
+
+        List<Read<A, D>> reads = entry.waiting;
+        entry.waiting = new ArrayList<>();
+        entry.pendingId = -1;
+        return reads;
+    }
+
+    static class Read<A, D> {
+        final A attribute;
+        final D device;
+        final int requestId;
+        final int offset;
+
+        Read(A attribute, D device, int requestId, int offset) {
+            this.attribute = attribute;
+            this.device = device;
+            this.requestId = requestId;
+            this.offset = offset;
+        }
+    }
+
+    private static class Entry<A, D> {
+        long ttl;
+        long deadline;
+        byte[] value;
+        long expires;
+        int pendingId = -1;
+        List<Read<A, D>> waiting = new ArrayList<>();
+    }
+
+}
@@ -0,0 +1,325 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// A GATT table definition and its compact binary form. The binary form is
+// compiled once from JSON and restored without parsing text or UUID strings.
+class GattSchema {
+
+    // "GATT"
+    static final int MAGIC = 0x47415454;
+    static final int VERSION = 1;
+
+    // characteristic flags
+    static final int FLAG_CONFLATE_NOTIFICATIONS = 1;
+    static final int FLAG_WRITE_FILTER = 2;
+
+    // BluetoothGattDescriptor.PERMISSION_READ, descriptors from JSON are read only
+    static final int DESCRIPTOR_PERMISSION_READ = 1;
+
+    static class Service {
+        final UUID uuid;
+        final List<Characteristic> characteristics = new ArrayList<>();
+
+        Service(UUID uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    static class Characteristic {
+        final UUID uuid;
+        final int properties;
+        final int permissions;
+        int flags;
+        byte[] value = new byte[0];
+        WriteFilterRules writeFilter; // when FLAG_WRITE_FILTER is set
+        final List<Descriptor> descriptors = new ArrayList<>();
+
+        Characteristic(UUID uuid, int properties, int permissions) {
+            this.uuid = uuid;
+            this.properties = properties;
+            this.permissions = permissions;
+        }
+    }
+
+    static class Descriptor {
+        final UUID uuid;
+        final int permissions;
+        final byte[] value;
+
+        Descriptor(UUID uuid, int permissions, byte[] value) {
+            this.uuid = uuid;
+            this.permissions = permissions;
+            this.value = value;
+        }
+    }
+
+    // arguments for WriteFilter
+    static class WriteFilterRules {
+        final int minLength;
+        final int maxLength;
+        final boolean dropDuplicates;
+        final long conflateMillis;
+        final double perSecond;
+        final double burst;
+
+        WriteFilterRules(int minLength, int maxLength, boolean dropDuplicates, long conflateMillis, double perSecond, double burst) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.dropDuplicates = dropDuplicates;
+            this.conflateMillis = conflateMillis;
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+    }
+
+    // the service JSON used by createServiceFromJSON, see the README
+    static Service fromJSON(JSONObject json) throws JSONException {
+        UUID serviceUUID = UUIDHelper.uuidFromString(json.getString("uuid"));
+        Service service = new Service(serviceUUID);
+
+        JSONArray characteristicArray = json.getJSONArray("characteristics");
+        for (int i = 0; i < characteristicArray.length(); i++) {
+            JSONObject jsonObject = characteristicArray.getJSONObject(i);
+            UUID uuid = UUIDHelper.uuidFromString(jsonObject.getString("uuid"));
+            int properties = jsonObject.getInt("properties");
+            int permissions = jsonObject.getInt("permissions");
+            Characteristic characteristic = new Characteristic(uuid, properties, permissions);
+
+            // optional initial value, like descriptors only Strings for now
+            if (jsonObject.has("value")) {
+                characteristic.value = jsonObject.getString("value").getBytes();
+            }
+
+            if (jsonObject.optBoolean("conflateNotifications", false)) {
+                characteristic.flags |= FLAG_CONFLATE_NOTIFICATIONS;
+            }
+
+            JSONObject writeFilterJSON = jsonObject.optJSONObject("writeFilter");
+            if (writeFilterJSON != null) {
+                characteristic.writeFilter = writeFilterRulesFromJSON(writeFilterJSON);
+            }
+
+            // TODO handle JSON without descriptors
+            JSONArray descriptorsArray = jsonObject.getJSONArray("descriptors");
+            for (int j = 0; j < descriptorsArray.length(); j++) {
+                JSONObject jsonDescriptor = descriptorsArray.getJSONObject(j);
+
+                UUID descriptorUUID = UUIDHelper.uuidFromString(jsonDescriptor.getString("uuid"));
+
+                // TODO descriptor permissions should be optional in the JSON
+                //int descriptorPermissions = jsonDescriptor.getInt("permissions");
+                int descriptorPermissions = DESCRIPTOR_PERMISSION_READ;
+
+                // future versions need to handle more than Strings
+                String descriptorValue = jsonDescriptor.getString("value");
+
+                characteristic.descriptors.add(new Descriptor(descriptorUUID, descriptorPermissions, descriptorValue.getBytes()));
+            }
+
+            service.characteristics.add(characteristic);
+        }
+
+        return service;
+    }
+
+    // { minLength: 1, maxLength: 20, dropDuplicates: true, conflateMillis: 100, rateLimit: { perSecond: 10, burst: 20 } }
+    static WriteFilterRules writeFilterRulesFromJSON(JSONObject json) throws JSONException {
+        double perSecond = 0;
+        double burst = 0;
+        JSONObject rateLimit = json.optJSONObject("rateLimit");
+        if (rateLimit != null) {
+            perSecond = rateLimit.getDouble("perSecond");
+            burst = rateLimit.optDouble("burst", perSecond);
+        }
+
+        return new WriteFilterRules(
+                json.optInt("minLength", 0),
+                json.optInt("maxLength", PreparedWriteBuffer.MAX_ATTRIBUTE_LENGTH),
+                json.optBoolean("dropDuplicates", false),
+                json.optLong("conflateMillis", 0),
+                perSecond,
+                burst);
+    }
+
+    // All numbers are big endian.
+    //
+    //   uint32    magic "GATT"
+    //   uint8     version
+    //   uint16    service count
+    //   for each service
+    //     16 bytes  UUID
+    //     uint16    characteristic count
+    //     for each characteristic
+    //       16 bytes  UUID
+    //       uint8     properties
+    //       uint16    permissions
+    //       uint8     flags
+    //       uint16    value length
+    //       n bytes   value
+    //       if FLAG_WRITE_FILTER
+    //         uint16    min length
+    //         uint16    max length
+    //         uint8     drop duplicates
+    //         uint32    conflate millis
+    //         float64   writes per second
+    //         float64   burst
+    //       uint8     descriptor count
+    //       for each descriptor
+    //         16 bytes  UUID
+    //         uint16    permissions
+    //         uint16    value length
+    //         n bytes   value
+    static byte[] encode(List<Service> services) {
+        int size = 4 + 1 + 2;
+        for (Service service : services) {
+            size += 16 + 2;
+            for (Characteristic characteristic : service.characteristics) {
+                size += 16 + 1 + 2 + 1 + 2 + characteristic.value.length + 1;
+                if (characteristic.writeFilter != null) {
+                    size += 2 + 2 + 1 + 4 + 8 + 8;
+                }
+                for (Descriptor descriptor : characteristic.descriptors) {
+                    size += 16 + 2 + 2 + descriptor.value.length;
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putShort((short) services.size());
+
+        for (Service service : services) {
+            putUUID(buffer, service.uuid);
+            buffer.putShort((short) service.characteristics.size());
+
+            for (Characteristic characteristic : service.characteristics) {
+                int flags = characteristic.flags & ~FLAG_WRITE_FILTER;
+                if (characteristic.writeFilter != null) {
+                    flags |= FLAG_WRITE_FILTER;
+                }
+
+                putUUID(buffer, characteristic.uuid);
+                buffer.put((byte) characteristic.properties);
+                buffer.putShort((short) characteristic.permissions);
+                buffer.put((byte) flags);
+                buffer.putShort((short) characteristic.value.length);
+                buffer.put(characteristic.value);
+
+                WriteFilterRules rules = characteristic.writeFilter;
+                if (rules != null) {
+                    buffer.putShort((short) rules.minLength);
+                    buffer.putShort((short) rules.maxLength);
+                    buffer.put((byte) (rules.dropDuplicates ? 1 : 0));
+                    buffer.putInt((int) rules.conflateMillis);
+                    buffer.putDouble(rules.perSecond);
+                    buffer.putDouble(rules.burst);
+                }
+
+                buffer.put((byte) characteristic.descriptors.size());
+                for (Descriptor descriptor : characteristic.descriptors) {
+                    putUUID(buffer, descriptor.uuid);
+                    buffer.putShort((short) descriptor.permissions);
+                    buffer.putShort((short) descriptor.value.length);
+                    buffer.put(descriptor.value);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    // reads from the buffer's position, e.g. a memory mapped file
+    static List<Service> decode(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a GATT schema");
+            }
+            int version = buffer.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported GATT schema version " + version);
+            }
+
+            int serviceCount = buffer.getShort() & 0xFFFF;
+            List<Service> services = new ArrayList<>(serviceCount);
+            for (int i = 0; i < serviceCount; i++) {
+                Service service = new Service(getUUID(buffer));
+                int characteristicCount = buffer.getShort() & 0xFFFF;
+
+                for (int j = 0; j < characteristicCount; j++) {
+                    UUID uuid = getUUID(buffer);
+                    int properties = buffer.get() & 0xFF;
+                    int permissions = buffer.getShort() & 0xFFFF;
+                    Characteristic characteristic = new Characteristic(uuid, properties, permissions);
+                    characteristic.flags = buffer.get() & 0xFF;
+                    characteristic.value = getBytes(buffer);
+
+                    if ((characteristic.flags & FLAG_WRITE_FILTER) != 0) {
+                        characteristic.writeFilter = new WriteFilterRules(
+                                buffer.getShort() & 0xFFFF,
+                                buffer.getShort() & 0xFFFF,
+                                buffer.get() != 0,
+                                buffer.getInt() & 0xFFFFFFFFL,
+                                buffer.getDouble(),
+                                buffer.getDouble());
+                    }
+
+                    int descriptorCount = buffer.get() & 0xFF;
+                    for (int k = 0; k < descriptorCount; k++) {
+                        UUID descriptorUUID = getUUID(buffer);
+                        int descriptorPermissions = buffer.getShort() & 0xFFFF;
+                        characteristic.descriptors.add(new Descriptor(descriptorUUID, descriptorPermissions, getBytes(buffer)));
+                    }
+                    service.characteristics.add(characteristic);
+                }
+                services.add(service);
+            }
+            return services;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated GATT schema");
+        }
+    }
+
+    private static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    // 16 bit UUIDs come from the UUIDHelper cache
+    private static UUID getUUID(ByteBuffer buffer) {
+        UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+        if (UUIDHelper.uuidLength(uuid) == 2) {
+            return UUIDHelper.uuidFrom16Bit((int) (uuid.getMostSignificantBits() >>> 32));
+        }
+        return uuid;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,31 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+// The calls the plugin makes to the GATT server. AndroidGattTransport wraps
+// BluetoothGattServer, src/simulator has an in memory implementation with
+// virtual centrals for load testing. D is the device type and A is the
+// attribute type.
+interface GattTransport<D, A> {
+
+    String getAddress(D device);
+
+    // returns true if sending started, the transport then reports the result
+    // with NotificationScheduler.notificationSent
+    boolean notify(D device, A characteristic, byte[] value, boolean confirm);
+
+    boolean sendResponse(D device, int requestId, int status, int offset, byte[] value);
+
+}
@@ -0,0 +1,61 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+// Latency histogram with fixed buckets. Recording is a short scan of the
+// bucket bounds, nothing is allocated.
+class Histogram {
+
+    // upper bounds of the buckets in microseconds, the last bucket holds everything slower
+    static final long[] BOUNDS = {
+            250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000
+    };
+
+    final long[] buckets = new long[BOUNDS.length + 1];
+    long count;
+    long sum; // microseconds
+
+    void record(long micros) {
+        int i = 0;
+        while (i < BOUNDS.length && micros > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i]++;
+        count++;
+        sum += micros;
+    }
+
+    Histogram copy() {
+        Histogram copy = new Histogram();
+        System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+        copy.count = count;
+        copy.sum = sum;
+        return copy;
+    }
+
+    // the values recorded since previous was copied
+    Histogram minus(Histogram previous) {
+        Histogram delta = copy();
+        if (previous != null) {
+            for (int i = 0; i < buckets.length; i++) {
+                delta.buckets[i] -= previous.buckets[i];
+            }
+            delta.count -= previous.count;
+            delta.sum -= previous.sum;
+        }
+        return delta;
+    }
+
+}
@@ -0,0 +1,286 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// L2CAP connection oriented channels (Android 10 and later), for bulk data
+// without the ATT overhead of notifications and write requests.
+// Accepted channels each have a reader thread that reads into one reusable
+// buffer, and all writes go through a single writer thread. Both directions
+// have backpressure: send fails when too much is queued, and a channel stops
+// reading, which stops the central's credits, while too much received data
+// hasn't been acknowledged by JavaScript.
+class L2capServer {
+
+    private static final String TAG = "BLEPeripheral";
+
+    // bytes waiting to be written to each channel
+    static final int SEND_QUEUE_CAPACITY = 256 * 1024;
+
+    // bytes delivered to JavaScript but not acknowledged before reading stops
+    static final int RECEIVE_WINDOW = 256 * 1024;
+
+    // read buffer size if the socket doesn't report its MTU
+    private static final int DEFAULT_BUFFER_SIZE = 512;
+
+    // Listener methods are called on the accept and reader threads
+    interface Listener {
+        void onOpen(Channel channel);
+
+        // buffer is reused for the next read, copy what's needed before returning
+        void onData(Channel channel, byte[] buffer, int length);
+
+        void onClosed(Channel channel, String reason);
+    }
+
+    // called on the writer thread
+    interface SendCallback {
+        void onSent(Channel channel, int length);
+
+        void onFailed(Channel channel, String reason);
+    }
+
+    private final BluetoothServerSocket serverSocket;
+    private final Listener listener;
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final HandlerThread writerThread = new HandlerThread("BLEPeripheral-L2CAP");
+    private Handler writer;
+    private Thread acceptThread;
+    private int nextId = 1;
+    private volatile boolean closed;
+
+    L2capServer(BluetoothServerSocket serverSocket, Listener listener) {
+        this.serverSocket = serverSocket;
+        this.listener = listener;
+    }
+
+    int getPsm() {
+        return serverSocket.getPsm();
+    }
+
+    void start() {
+        writerThread.start();
+        writer = new Handler(writerThread.getLooper());
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "BLEPeripheral-L2CAP-accept");
+        acceptThread.start();
+    }
+
+    Channel getChannel(int id) {
+        return channels.get(id);
+    }
+
+    Collection<Channel> getChannels() {
+        return channels.values();
+    }
+
+    // stops accepting and closes every channel
+    void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing L2CAP server socket", e);
+        }
+        for (Channel channel : channels.values()) {
+            channel.close("server closed");
+        }
+        writerThread.quitSafely();
+    }
+
+    private void accept() {
+        while (!closed) {
+            BluetoothSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.e(TAG, "L2CAP accept failed", e);
+                }
+                return;
+            }
+
+            final Channel channel = new Channel(nextId++, socket);
+            channels.put(channel.id, channel);
+            listener.onOpen(channel);
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    channel.read();
+                }
+            }, "BLEPeripheral-L2CAP-" + channel.id);
+            reader.start();
+        }
+    }
+
+    class Channel {
+        final int id;
+        final BluetoothSocket socket;
+        final String address;
+        final long opened = SystemClock.elapsedRealtime();
+
+        // guarded by this
+        private int queuedBytes;
+        private int unacknowledgedBytes;
+        private boolean channelClosed;
+
+        private volatile long bytesSent;
+        private volatile long bytesReceived;
+
+        Channel(int id, BluetoothSocket socket) {
+            this.id = id;
+            this.socket = socket;
+            this.address = socket.getRemoteDevice().getAddress();
+        }
+
+        // queues the data for the writer thread, false if the queue is full or the channel is closed
+        boolean send(final byte[] data, final SendCallback callback) {
+            synchronized (this) {
+                if (channelClosed || queuedBytes + data.length > SEND_QUEUE_CAPACITY) {
+                    return false;
+                }
+                queuedBytes += data.length;
+            }
+
+            boolean posted = writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    write(data, callback);
+                }
+            });
+            if (!posted) {
+                // the writer thread has quit, the server is closing
+                synchronized (this) {
+                    queuedBytes -= data.length;
+                }
+                callback.onFailed(this, "closed");
+            }
+            return true;
+        }
+
+        // JavaScript has handled length received bytes
+        synchronized void acknowledge(int length) {
+            unacknowledgedBytes = Math.max(0, unacknowledgedBytes - length);
+            notifyAll();
+        }
+
+        synchronized int getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        synchronized int getUnacknowledgedBytes() {
+            return unacknowledgedBytes;
+        }
+
+        long getBytesSent() {
+            return bytesSent;
+        }
+
+        long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        void close(String reason) {
+            synchronized (this) {
+                if (channelClosed) {
+                    return;
+                }
+                channelClosed = true;
+                notifyAll();
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing L2CAP channel " + id, e);
+            }
+            channels.remove(id);
+            listener.onClosed(this, reason);
+        }
+
+        private void write(byte[] data, SendCallback callback) {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(data);
+                bytesSent += data.length;
+                synchronized (this) {
+                    queuedBytes -= data.length;
+                }
+                callback.onSent(this, data.length);
+            } catch (IOException e) {
+                synchronized (this) {
+                    queuedBytes -= data.length;
+                }
+                callback.onFailed(this, e.getMessage());
+                close("write failed");
+            }
+        }
+
+        private void read() {
+            int bufferSize = socket.getMaxReceivePacketSize();
+            byte[] buffer = new byte[bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE];
+
+            try {
+                InputStream in = socket.getInputStream();
+                while (true) {
+                    synchronized (this) {
+                        while (unacknowledgedBytes >= RECEIVE_WINDOW && !channelClosed) {
+                            wait();
+                        }
+                        if (channelClosed) {
+                            return;
+                        }
+                    }
+
+                    int length = in.read(buffer);
+                    if (length < 0) {
+                        break;
+                    }
+
+                    bytesReceived += length;
+                    synchronized (this) {
+                        unacknowledgedBytes += length;
+                    }
+                    listener.onData(this, buffer, length);
+                }
+                close("disconnected");
+            } catch (IOException e) {
+                close("disconnected");
+            } catch (InterruptedException e) {
+                close("interrupted");
+            }
+        }
+    }
+
+}
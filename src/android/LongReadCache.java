@@ -0,0 +1,74 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Serves read requests at an offset. Values longer than the MTU are read
+// with a series of requests at increasing offsets, each response needs to
+// start at the requested offset.
+//
+// Offset 0 returns the stored array without copying. Slices at other offsets
+// are kept until the value changes so repeated long reads, and multiple
+// centrals reading the same value, don't allocate.
+class LongReadCache {
+
+    private final Map<Object, Entry> entries = new HashMap<>();
+
+    // returns the value starting at offset or null if the offset is invalid
+    byte[] slice(Object attribute, byte[] value, int offset) {
+        if (value == null) {
+            value = new byte[0];
+        }
+
+        if (offset == 0) {
+            return value;
+        }
+
+        if (offset < 0 || offset > value.length) {
+            return null;
+        }
+
+        Entry entry = entries.get(attribute);
+        // the array is replaced when the value is set, so identity means unchanged
+        if (entry == null || entry.value != value) {
+            entry = new Entry(value);
+            entries.put(attribute, entry);
+        }
+
+        byte[] slice = entry.slices.get(offset);
+        if (slice == null) {
+            slice = Arrays.copyOfRange(value, offset, value.length);
+            entry.slices.put(offset, slice);
+        }
+        return slice;
+    }
+
+    void remove(Object attribute) {
+        entries.remove(attribute);
+    }
+
+    private static class Entry {
+        final byte[] value;
+        final Map<Integer, byte[]> slices = new HashMap<>();
+
+        Entry(byte[] value) {
+            this.value = value;
+        }
+    }
+
+}
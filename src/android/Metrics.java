@@ -0,0 +1,191 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Counters and latency histograms for each characteristic and each device.
+// Everything is recorded on the plugin's event loop, so plain fields are
+// enough and recording doesn't allocate once a key has been seen.
+class Metrics {
+
+    static final int READS = 0;
+    static final int WRITES = 1;
+    static final int NOTIFICATIONS_SENT = 2;
+    static final int NOTIFICATIONS_ACKED = 3;
+    static final int NOTIFICATIONS_FAILED = 4;
+    static final int BYTES_IN = 5;
+    static final int BYTES_OUT = 6;
+    static final int WRITES_FILTERED = 7;
+    static final int NOTIFICATIONS_CONFLATED = 8;
+
+    static final String[] COUNTER_NAMES = {
+            "reads", "writes", "notificationsSent", "notificationsAcked", "notificationsFailed", "bytesIn", "bytesOut",
+            "writesFiltered", "notificationsConflated"
+    };
+
+    private Map<UUID, Stats> characteristics = new HashMap<>();
+    private Map<String, Stats> devices = new HashMap<>();
+    private long started = System.nanoTime();
+
+    // copies from the previous delta snapshot
+    private Map<UUID, Stats> previousCharacteristics = new HashMap<>();
+    private Map<String, Stats> previousDevices = new HashMap<>();
+    private long previousSnapshot = started;
+
+    void read(UUID characteristic, String device, int bytes) {
+        count(characteristic, device, READS, 1);
+        count(characteristic, device, BYTES_OUT, bytes);
+    }
+
+    void write(UUID characteristic, String device, int bytes) {
+        count(characteristic, device, WRITES, 1);
+        count(characteristic, device, BYTES_IN, bytes);
+    }
+
+    // rejected, duplicate or conflated writes that didn't reach JavaScript
+    void writeFiltered(UUID characteristic, String device) {
+        count(characteristic, device, WRITES_FILTERED, 1);
+    }
+
+    // values replaced by a newer value before they were sent
+    void notificationConflated(UUID characteristic, String device) {
+        count(characteristic, device, NOTIFICATIONS_CONFLATED, 1);
+    }
+
+    void notificationStarted(UUID characteristic, String device, int bytes) {
+        count(characteristic, device, NOTIFICATIONS_SENT, 1);
+        count(characteristic, device, BYTES_OUT, bytes);
+    }
+
+    // micros is the time from notify to onNotificationSent, or -1 if sending didn't start
+    void notificationCompleted(UUID characteristic, String device, boolean success, long micros) {
+        count(characteristic, device, success ? NOTIFICATIONS_ACKED : NOTIFICATIONS_FAILED, 1);
+        if (micros >= 0) {
+            stats(characteristic).notifyLatency.record(micros);
+            stats(device).notifyLatency.record(micros);
+        }
+    }
+
+    // time from the write request until the value was sent to JavaScript
+    void writeDelivered(UUID characteristic, long micros) {
+        stats(characteristic).writeLatency.record(micros);
+    }
+
+    // forget a disconnected device, centrals with private addresses come back with new ones
+    void removeDevice(String device) {
+        devices.remove(device);
+        previousDevices.remove(device);
+    }
+
+    Snapshot snapshot(boolean delta) {
+        long now = System.nanoTime();
+        Snapshot snapshot = new Snapshot();
+
+        if (delta) {
+            snapshot.elapsed = (now - previousSnapshot) / 1000000;
+            snapshot.characteristics = minus(characteristics, previousCharacteristics);
+            snapshot.devices = minus(devices, previousDevices);
+            previousCharacteristics = copy(characteristics);
+            previousDevices = copy(devices);
+            previousSnapshot = now;
+        } else {
+            snapshot.elapsed = (now - started) / 1000000;
+            snapshot.characteristics = copy(characteristics);
+            snapshot.devices = copy(devices);
+        }
+        return snapshot;
+    }
+
+    private void count(UUID characteristic, String device, int counter, long amount) {
+        stats(characteristic).counters[counter] += amount;
+        stats(device).counters[counter] += amount;
+    }
+
+    private Stats stats(UUID characteristic) {
+        Stats stats = characteristics.get(characteristic);
+        if (stats == null) {
+            stats = new Stats();
+            characteristics.put(characteristic, stats);
+        }
+        return stats;
+    }
+
+    private Stats stats(String device) {
+        Stats stats = devices.get(device);
+        if (stats == null) {
+            stats = new Stats();
+            devices.put(device, stats);
+        }
+        return stats;
+    }
+
+    private static <K> Map<K, Stats> copy(Map<K, Stats> stats) {
+        Map<K, Stats> copy = new HashMap<>();
+        for (Map.Entry<K, Stats> entry : stats.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    private static <K> Map<K, Stats> minus(Map<K, Stats> stats, Map<K, Stats> previous) {
+        Map<K, Stats> delta = new HashMap<>();
+        for (Map.Entry<K, Stats> entry : stats.entrySet()) {
+            delta.put(entry.getKey(), entry.getValue().minus(previous.get(entry.getKey())));
+        }
+        return delta;
+    }
+
+    static class Stats {
+        final long[] counters = new long[COUNTER_NAMES.length];
+        final Histogram writeLatency;
+        final Histogram notifyLatency;
+
+        Stats() {
+            this(new Histogram(), new Histogram());
+        }
+
+        private Stats(Histogram writeLatency, Histogram notifyLatency) {
+            this.writeLatency = writeLatency;
+            this.notifyLatency = notifyLatency;
+        }
+
+        Stats copy() {
+            Stats copy = new Stats(writeLatency.copy(), notifyLatency.copy());
+            System.arraycopy(counters, 0, copy.counters, 0, counters.length);
+            return copy;
+        }
+
+        Stats minus(Stats previous) {
+            if (previous == null) {
+                return copy();
+            }
+            Stats delta = new Stats(writeLatency.minus(previous.writeLatency), notifyLatency.minus(previous.notifyLatency));
+            for (int i = 0; i < counters.length; i++) {
+                delta.counters[i] = counters[i] - previous.counters[i];
+            }
+            return delta;
+        }
+    }
+
+    static class Snapshot {
+        long elapsed; // milliseconds covered by the snapshot
+        Map<UUID, Stats> characteristics;
+        Map<String, Stats> devices;
+    }
+
+}
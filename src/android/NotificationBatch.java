@@ -0,0 +1,98 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Results for setCharacteristicValues, one entry for each value that was set.
+// The callback is resolved with the results once every entry is done, or
+// rejected with the results if any entry failed.
+class NotificationBatch {
+
+    private static final String TAG = "BLEPeripheral";
+
+    private final CallbackContext callbackContext;
+    private final JSONObject[] results;
+    private int remaining;
+    private boolean started;
+    private boolean failed;
+
+    NotificationBatch(CallbackContext callbackContext, int size) {
+        this.callbackContext = callbackContext;
+        this.results = new JSONObject[size];
+        this.remaining = size;
+    }
+
+    // error is null if the entry succeeded
+    void complete(int index, String service, String characteristic, String error) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("service", service);
+            result.put("characteristic", characteristic);
+            if (error != null) {
+                result.put("error", error);
+            }
+            results[index] = result;
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in NotificationBatch", e);
+        }
+
+        if (error != null) {
+            failed = true;
+        }
+
+        remaining--;
+        if (remaining == 0 && started) {
+            finish();
+        }
+    }
+
+    NotificationRequest.Listener listener(final int index, final String service, final String characteristic) {
+        return new NotificationRequest.Listener() {
+            @Override
+            public void onComplete(String error) {
+                complete(index, service, characteristic, error);
+            }
+        };
+    }
+
+    // call after all the entries are queued
+    void started() {
+        started = true;
+        if (remaining == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        JSONArray json = new JSONArray();
+        for (JSONObject result : results) {
+            json.put(result);
+        }
+
+        if (failed) {
+            callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, json));
+        } else {
+            callbackContext.success(json);
+        }
+    }
+
+}
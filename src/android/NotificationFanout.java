@@ -0,0 +1,86 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Queues a characteristic update for every subscribed device. Conflated
+// characteristics are last value wins, a value still waiting for a device is
+// replaced instead of queuing another one.
+// D is the device type and A is the attribute type.
+class NotificationFanout<D, A> {
+
+    interface Listener<D, A> {
+        // the device gets a newer value instead, so the replaced update counts as delivered
+        void onConflated(D device, NotificationQueue.Notification<A> replaced);
+
+        // the device's queue was full, the notification was dropped
+        void onDropped(D device, NotificationQueue.Notification<A> notification, NotificationQueue<A> queue);
+    }
+
+    private final SubscriptionIndex<A, D> subscriptions;
+    private final Listener<D, A> listener;
+    private final Set<A> conflated = new HashSet<>();
+
+    NotificationFanout(SubscriptionIndex<A, D> subscriptions, Listener<D, A> listener) {
+        this.subscriptions = subscriptions;
+        this.listener = listener;
+    }
+
+    void setConflated(A characteristic, boolean conflate) {
+        if (conflate) {
+            conflated.add(characteristic);
+        } else {
+            conflated.remove(characteristic);
+        }
+    }
+
+    boolean isConflated(A characteristic) {
+        return conflated.contains(characteristic);
+    }
+
+    // Adds a notification to each subscriber's queue. The queues that need sending are added
+    // to queues, or if queues is null, sending starts right away.
+    void queue(NotificationScheduler<D, A> scheduler, A characteristic, byte[] value, NotificationQueue.Callback<A> callback, Map<D, NotificationQueue<A>> queues) {
+        boolean conflate = conflated.contains(characteristic);
+
+        for (Map.Entry<D, Integer> subscriber : subscriptions.getSubscribers(characteristic).entrySet()) {
+            D device = subscriber.getKey();
+            boolean confirm = subscriber.getValue() == SubscriptionIndex.INDICATE;
+
+            NotificationQueue<A> queue = scheduler.getQueue(device);
+            NotificationQueue.Notification<A> notification = new NotificationQueue.Notification<>(characteristic, value, confirm, callback);
+
+            if (conflate) {
+                NotificationQueue.Notification<A> replaced = queue.replaceLatest(notification);
+                if (replaced != null) {
+                    listener.onConflated(device, replaced);
+                    continue;
+                }
+            }
+
+            if (!(conflate ? queue.offerLatest(notification) : queue.offer(notification))) {
+                listener.onDropped(device, notification, queue);
+            } else if (queues == null) {
+                scheduler.send(device, queue);
+            } else {
+                queues.put(device, queue);
+            }
+        }
+    }
+
+}
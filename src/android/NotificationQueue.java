@@ -0,0 +1,182 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Outbound notifications for one connected device.
+// Android only allows one outstanding notification per device, the next one
+// can't be sent until onNotificationSent is called for the previous one.
+//
+// A is the attribute type. Devices are identified by address so this class
+// doesn't depend on the Android Bluetooth classes.
+class NotificationQueue<A> {
+
+    private final ArrayDeque<Notification<A>> queue = new ArrayDeque<>();
+    // the waiting notification for each last value wins characteristic
+    private final Map<A, Notification<A>> latest = new HashMap<>();
+    private final int capacity;
+    private Notification<A> inFlight;
+
+    // System.nanoTime() when the in flight notification was handed to the transport
+    long inFlightSince;
+
+    private long sent;
+    private long failed;
+    private long dropped;
+    private long conflated;
+
+    NotificationQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // returns false if the queue is full, the notification is dropped
+    boolean offer(Notification<A> notification) {
+        if (queue.size() >= capacity) {
+            dropped++;
+            return false;
+        }
+        queue.add(notification);
+        return true;
+    }
+
+    // Last value wins. If a notification for the same characteristic is waiting, it
+    // takes the new value and callback and the notification it replaced is returned.
+    // Returns null if nothing was waiting, use offerLatest to queue the notification.
+    Notification<A> replaceLatest(Notification<A> notification) {
+        Notification<A> waiting = latest.get(notification.characteristic);
+        if (waiting == null) {
+            return null;
+        }
+
+        Notification<A> replaced = new Notification<>(waiting.characteristic, waiting.value, waiting.confirm, waiting.callback);
+        waiting.value = notification.value;
+        waiting.callback = notification.callback;
+        conflated++;
+        return replaced;
+    }
+
+    // offer a notification that later values of the characteristic can replace
+    boolean offerLatest(Notification<A> notification) {
+        if (!offer(notification)) {
+            return false;
+        }
+        latest.put(notification.characteristic, notification);
+        return true;
+    }
+
+    boolean isFull() {
+        return queue.size() >= capacity;
+    }
+
+    // remove queued notifications for a callback without calling it
+    void purge(Callback<A> callback) {
+        Iterator<Notification<A>> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Notification<A> notification = iterator.next();
+            if (notification.callback == callback) {
+                iterator.remove();
+                latest.remove(notification.characteristic);
+            }
+        }
+    }
+
+    // returns the next notification to send, or null if one is already in flight
+    Notification<A> next() {
+        if (inFlight != null) {
+            return null;
+        }
+        inFlight = queue.poll();
+        if (inFlight != null && latest.get(inFlight.characteristic) == inFlight) {
+            // sending, so the next value waits in the queue again
+            latest.remove(inFlight.characteristic);
+        }
+        return inFlight;
+    }
+
+    // called when the in flight notification was sent or failed
+    Notification<A> complete(boolean success) {
+        Notification<A> notification = inFlight;
+        inFlight = null;
+        if (notification != null) {
+            if (success) {
+                sent++;
+            } else {
+                failed++;
+            }
+        }
+        return notification;
+    }
+
+    // remove everything, including the in flight notification
+    List<Notification<A>> clear() {
+        List<Notification<A>> pending = new ArrayList<>(queue.size() + 1);
+        if (inFlight != null) {
+            pending.add(inFlight);
+            inFlight = null;
+        }
+        pending.addAll(queue);
+        queue.clear();
+        latest.clear();
+        return pending;
+    }
+
+    int depth() {
+        return queue.size() + (inFlight == null ? 0 : 1);
+    }
+
+    long getSent() {
+        return sent;
+    }
+
+    long getFailed() {
+        return failed;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    // values replaced by a newer value before they were sent
+    long getConflated() {
+        return conflated;
+    }
+
+    interface Callback<A> {
+        void onSent(String address, Notification<A> notification);
+        void onFailed(String address, Notification<A> notification, String reason);
+    }
+
+    static class Notification<A> {
+        final A characteristic;
+        final boolean confirm;
+        // replaced in place for last value wins characteristics
+        byte[] value;
+        Callback<A> callback;
+
+        Notification(A characteristic, byte[] value, boolean confirm, Callback<A> callback) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.confirm = confirm;
+            this.callback = callback;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+// Tracks a value that is being sent to all subscribed devices.
+// The listener is called once every device has the value, with an error
+// listing the devices that didn't get it.
+class NotificationRequest<A> implements NotificationQueue.Callback<A> {
+
+    interface Listener {
+        // error is null if all the devices have the value
+        void onComplete(String error);
+    }
+
+    private final Listener listener;
+    private int remaining;
+    private StringBuilder errors;
+
+    NotificationRequest(Listener listener, int deviceCount) {
+        this.listener = listener;
+        this.remaining = deviceCount;
+        if (deviceCount == 0) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onSent(String address, NotificationQueue.Notification<A> notification) {
+        deviceSucceeded();
+    }
+
+    @Override
+    public void onFailed(String address, NotificationQueue.Notification<A> notification, String reason) {
+        deviceFailed(address, reason);
+    }
+
+    void deviceSucceeded() {
+        remaining--;
+        if (remaining == 0) {
+            finish();
+        }
+    }
+
+    void deviceFailed(String address, String reason) {
+        if (errors == null) {
+            errors = new StringBuilder("Notification failed for ");
+        } else {
+            errors.append(", ");
+        }
+        errors.append(address).append(" (").append(reason).append(")");
+
+        remaining--;
+        if (remaining == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        listener.onComplete(errors == null ? null : errors.toString());
+    }
+
+}
@@ -0,0 +1,113 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Sends the queued notifications for each device through a GattTransport,
+// one at a time. The next notification goes out when the transport reports
+// the previous one was sent.
+class NotificationScheduler<D, A> {
+
+    private final GattTransport<D, A> transport;
+    private final int capacity;
+    private final Map<D, NotificationQueue<A>> queues = new HashMap<>();
+    private Listener<D, A> listener;
+
+    NotificationScheduler(GattTransport<D, A> transport, int capacity) {
+        this.transport = transport;
+        this.capacity = capacity;
+    }
+
+    // optional, used to record metrics
+    void setListener(Listener<D, A> listener) {
+        this.listener = listener;
+    }
+
+    NotificationQueue<A> getQueue(D device) {
+        NotificationQueue<A> queue = queues.get(device);
+        if (queue == null) {
+            queue = new NotificationQueue<>(capacity);
+            queues.put(device, queue);
+        }
+        return queue;
+    }
+
+    Map<D, NotificationQueue<A>> getQueues() {
+        return queues;
+    }
+
+    // start sending, does nothing if a notification is already in flight
+    void send(D device, NotificationQueue<A> queue) {
+        NotificationQueue.Notification<A> notification;
+
+        while ((notification = queue.next()) != null) {
+            if (transport.notify(device, notification.characteristic, notification.value, notification.confirm)) {
+                if (listener != null) {
+                    queue.inFlightSince = System.nanoTime();
+                    listener.onNotificationStarted(device, notification.characteristic, notification.value.length);
+                }
+                return; // wait for notificationSent
+            }
+
+            queue.complete(false);
+            if (listener != null) {
+                listener.onNotificationCompleted(device, notification.characteristic, false, -1);
+            }
+            notification.callback.onFailed(transport.getAddress(device), notification, "notify failed");
+        }
+    }
+
+    void notificationSent(D device, boolean success, String reason) {
+        NotificationQueue<A> queue = queues.get(device);
+        if (queue == null) {
+            return;
+        }
+
+        NotificationQueue.Notification<A> notification = queue.complete(success);
+        if (notification != null) {
+            if (listener != null) {
+                long micros = (System.nanoTime() - queue.inFlightSince) / 1000;
+                listener.onNotificationCompleted(device, notification.characteristic, success, micros);
+            }
+            if (success) {
+                notification.callback.onSent(transport.getAddress(device), notification);
+            } else {
+                notification.callback.onFailed(transport.getAddress(device), notification, reason);
+            }
+        }
+
+        send(device, queue);
+    }
+
+    // fail everything queued for a device that disconnected
+    void removeDevice(D device) {
+        NotificationQueue<A> queue = queues.remove(device);
+        if (queue != null) {
+            for (NotificationQueue.Notification<A> notification : queue.clear()) {
+                notification.callback.onFailed(transport.getAddress(device), notification, "disconnected");
+            }
+        }
+    }
+
+    interface Listener<D, A> {
+        void onNotificationStarted(D device, A characteristic, int length);
+
+        // micros is the time the notification was in flight, or -1 if sending didn't start
+        void onNotificationCompleted(D device, A characteristic, boolean success, long micros);
+    }
+
+}
@@ -0,0 +1,198 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Sends a value that is larger than one ATT packet to the subscribed devices.
+// The value is split into MTU sized notifications for each device. A few chunks
+// are kept in the device's queue so the next one is ready as soon as
+// onNotificationSent is called for the previous one.
+class NotificationStream implements NotificationQueue.Callback<BluetoothGattCharacteristic> {
+
+    private static final String TAG = "BLEPeripheral";
+
+    // chunks queued ahead for each device
+    private static final int WINDOW = 4;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    private final BluetoothGattCharacteristic characteristic;
+    private final byte[] value;
+    private final CallbackContext callbackContext;
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    private final long startTime = SystemClock.elapsedRealtime();
+    private long lastProgressTime = startTime;
+    private long bytesSent;
+    private int remainingDevices;
+    private boolean started;
+    private StringBuilder errors;
+
+    NotificationStream(BluetoothGattCharacteristic characteristic, byte[] value, CallbackContext callbackContext) {
+        this.characteristic = characteristic;
+        this.value = value;
+        this.callbackContext = callbackContext;
+    }
+
+    // queue the first chunks for a device, the caller starts sending
+    void addDevice(String address, NotificationQueue<BluetoothGattCharacteristic> queue, int chunkSize, boolean confirm) {
+        Cursor cursor = new Cursor(queue, chunkSize, confirm);
+        cursors.put(address, cursor);
+        remainingDevices++;
+
+        if (queue.isFull()) {
+            deviceFailed(address, cursor, "queue full");
+        } else {
+            fill(cursor);
+        }
+    }
+
+    // call after all the devices are added
+    void started() {
+        started = true;
+        if (remainingDevices == 0) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onSent(String address, NotificationQueue.Notification<BluetoothGattCharacteristic> notification) {
+        Cursor cursor = cursors.get(address);
+        if (cursor == null || cursor.done) {
+            return;
+        }
+
+        cursor.outstanding--;
+        bytesSent += notification.value.length;
+
+        if (cursor.offset >= value.length && cursor.outstanding == 0) {
+            cursor.done = true;
+            deviceFinished();
+        } else {
+            fill(cursor);
+            sendProgress();
+        }
+    }
+
+    @Override
+    public void onFailed(String address, NotificationQueue.Notification<BluetoothGattCharacteristic> notification, String reason) {
+        Cursor cursor = cursors.get(address);
+        if (cursor != null && !cursor.done) {
+            deviceFailed(address, cursor, reason);
+        }
+    }
+
+    private void fill(Cursor cursor) {
+        while (cursor.outstanding < WINDOW && cursor.offset < value.length && !cursor.queue.isFull()) {
+            int end = Math.min(cursor.offset + cursor.chunkSize, value.length);
+            byte[] chunk = Arrays.copyOfRange(value, cursor.offset, end);
+            cursor.queue.offer(new NotificationQueue.Notification<>(characteristic, chunk, cursor.confirm, this));
+            cursor.offset = end;
+            cursor.outstanding++;
+        }
+    }
+
+    private void deviceFailed(String address, Cursor cursor, String reason) {
+        cursor.done = true;
+        // the rest of the stream is useless to the device
+        cursor.queue.purge(this);
+
+        if (errors == null) {
+            errors = new StringBuilder("Stream failed for ");
+        } else {
+            errors.append(", ");
+        }
+        errors.append(address).append(" (").append(reason).append(")");
+
+        deviceFinished();
+    }
+
+    private void deviceFinished() {
+        remainingDevices--;
+        if (remainingDevices == 0 && started) {
+            finish();
+        }
+    }
+
+    private void sendProgress() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastProgressTime < PROGRESS_INTERVAL_MILLIS) {
+            return;
+        }
+        lastProgressTime = now;
+
+        try {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, status("progress", now));
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in sendProgress", e);
+        }
+    }
+
+    private void finish() {
+        if (errors != null) {
+            callbackContext.error(errors.toString());
+            return;
+        }
+
+        try {
+            callbackContext.success(status("complete", SystemClock.elapsedRealtime()));
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON encoding failed in finish", e);
+            callbackContext.success();
+        }
+    }
+
+    private JSONObject status(String type, long now) throws JSONException {
+        long elapsed = Math.max(now - startTime, 1);
+
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("devices", cursors.size());
+        json.put("bytesSent", bytesSent);
+        json.put("totalBytes", (long) value.length * cursors.size());
+        json.put("elapsed", elapsed);
+        json.put("bytesPerSecond", bytesSent * 1000 / elapsed);
+        return json;
+    }
+
+    private static class Cursor {
+        final NotificationQueue<BluetoothGattCharacteristic> queue;
+        final int chunkSize;
+        final boolean confirm;
+        int offset;
+        int outstanding;
+        boolean done;
+
+        Cursor(NotificationQueue<BluetoothGattCharacteristic> queue, int chunkSize, boolean confirm) {
+            this.queue = queue;
+            this.chunkSize = chunkSize;
+            this.confirm = confirm;
+        }
+    }
+
+}
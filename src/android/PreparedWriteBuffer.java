@@ -0,0 +1,83 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Fragments of prepared (long or reliable) writes from one device.
+// The central sends the fragments with their offsets, then executes or
+// cancels all of them with onExecuteWrite. A is the attribute type.
+class PreparedWriteBuffer<A> {
+
+    // maximum length of an attribute value
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    // results of write
+    static final int ACCEPTED = 0;
+    static final int INVALID_OFFSET = 1;
+    static final int INVALID_LENGTH = 2;
+
+    private final Map<A, Fragments> buffers = new LinkedHashMap<>();
+
+    // Fragments must start within the value reassembled so far, a gap would leave
+    // bytes the central never wrote. Returns ACCEPTED, INVALID_OFFSET or INVALID_LENGTH.
+    int write(A characteristic, int offset, byte[] value) {
+        Fragments fragments = buffers.get(characteristic);
+        int length = fragments == null ? 0 : fragments.length;
+        if (offset < 0 || offset > length) {
+            return INVALID_OFFSET;
+        }
+        if (offset + value.length > MAX_ATTRIBUTE_LENGTH) {
+            return INVALID_LENGTH;
+        }
+
+        if (fragments == null) {
+            fragments = new Fragments();
+            buffers.put(characteristic, fragments);
+        }
+        fragments.write(offset, value);
+        return ACCEPTED;
+    }
+
+    // reassembled values, in the order the characteristics were first written
+    Map<A, byte[]> values() {
+        Map<A, byte[]> values = new LinkedHashMap<>();
+        for (Map.Entry<A, Fragments> entry : buffers.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return values;
+    }
+
+    private static class Fragments {
+        private byte[] data = new byte[64];
+        private int length;
+
+        void write(int offset, byte[] value) {
+            int end = offset + value.length;
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, Math.min(data.length * 2, MAX_ATTRIBUTE_LENGTH)));
+            }
+            System.arraycopy(value, 0, data, offset, value.length);
+            length = Math.max(length, end);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+}
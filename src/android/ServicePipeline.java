@@ -0,0 +1,127 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+// Adds services to the GATT server one at a time. Android only allows one
+// addService in flight and reports the result with onServiceAdded, so the next
+// service is added when the previous one completes. Each service has its own
+// deadline from when it's handed to the server, not from when it was queued.
+// S is the service type.
+class ServicePipeline<S> {
+
+    // status when addService returns false or onServiceAdded never arrives
+    static final int STATUS_FAILED = -1;
+    static final int STATUS_TIMEOUT = -2;
+
+    interface Server<S> {
+        boolean addService(S service);
+
+        // runs the task on the pipeline's thread after the delay
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    interface Callback<S> {
+        // status is the GATT status from onServiceAdded, 0 for success
+        void onServiceAdded(S service, int status, long micros);
+    }
+
+    private static class Registration<S> {
+        final S service;
+        final Callback<S> callback;
+
+        Registration(S service, Callback<S> callback) {
+            this.service = service;
+            this.callback = callback;
+        }
+    }
+
+    private final Server<S> server;
+    private final long timeoutMillis;
+    private final Queue<Registration<S>> queue = new ArrayDeque<>();
+    private Registration<S> inFlight;
+    private long inFlightSince;
+
+    ServicePipeline(Server<S> server, long timeoutMillis) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    void add(S service, Callback<S> callback) {
+        queue.add(new Registration<>(service, callback));
+        next();
+    }
+
+    // the service being added, null if the pipeline is idle
+    S getInFlight() {
+        return inFlight == null ? null : inFlight.service;
+    }
+
+    int size() {
+        return queue.size() + (inFlight == null ? 0 : 1);
+    }
+
+    void serviceAdded(S service, int status) {
+        if (inFlight == null || inFlight.service != service) {
+            return; // late result for a service that timed out
+        }
+        complete(status);
+        next();
+    }
+
+    // fails everything waiting, e.g. when Bluetooth is turned off
+    void clear(int status) {
+        if (inFlight != null) {
+            complete(status);
+        }
+        Registration<S> registration;
+        while ((registration = queue.poll()) != null) {
+            registration.callback.onServiceAdded(registration.service, status, 0);
+        }
+    }
+
+    private void next() {
+        while (inFlight == null && !queue.isEmpty()) {
+            final Registration<S> registration = queue.poll();
+            inFlight = registration;
+            inFlightSince = System.nanoTime();
+            if (!server.addService(registration.service)) {
+                complete(STATUS_FAILED);
+                continue;
+            }
+
+            server.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // the same service may have been added again since
+                    if (inFlight == registration) {
+                        complete(STATUS_TIMEOUT);
+                        next();
+                    }
+                }
+            }, timeoutMillis);
+        }
+    }
+
+    private void complete(int status) {
+        Registration<S> registration = inFlight;
+        long micros = (System.nanoTime() - inFlightSince) / 1000;
+        inFlight = null;
+        registration.callback.onServiceAdded(registration.service, status, micros);
+    }
+
+}
@@ -0,0 +1,78 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Devices subscribed to each characteristic, based on what the device wrote
+// to the Client Characteristic Configuration descriptor (0x2902).
+// A is the attribute type and D is the device type.
+class SubscriptionIndex<A, D> {
+
+    static final int NONE = 0;
+    static final int NOTIFY = 1;
+    static final int INDICATE = 2;
+
+    private final Map<A, Map<D, Integer>> subscribers = new HashMap<>();
+
+    void subscribe(A characteristic, D device, int mode) {
+        Map<D, Integer> devices = subscribers.get(characteristic);
+        if (devices == null) {
+            devices = new HashMap<>();
+            subscribers.put(characteristic, devices);
+        }
+        devices.put(device, mode);
+    }
+
+    void unsubscribe(A characteristic, D device) {
+        Map<D, Integer> devices = subscribers.get(characteristic);
+        if (devices != null) {
+            devices.remove(device);
+            if (devices.isEmpty()) {
+                subscribers.remove(characteristic);
+            }
+        }
+    }
+
+    // remove all subscriptions for a device, e.g. when it disconnects
+    void removeDevice(D device) {
+        Iterator<Map<D, Integer>> iterator = subscribers.values().iterator();
+        while (iterator.hasNext()) {
+            Map<D, Integer> devices = iterator.next();
+            devices.remove(device);
+            if (devices.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // subscribed devices and their mode, NOTIFY or INDICATE
+    Map<D, Integer> getSubscribers(A characteristic) {
+        Map<D, Integer> devices = subscribers.get(characteristic);
+        if (devices == null) {
+            return Collections.emptyMap();
+        }
+        return devices;
+    }
+
+    int getMode(A characteristic, D device) {
+        Integer mode = getSubscribers(characteristic).get(device);
+        return mode == null ? NONE : mode;
+    }
+
+}
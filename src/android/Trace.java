@@ -0,0 +1,186 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Fixed size binary records in a preallocated ring buffer, replacing the
+// Log.d calls on the GATT callback paths. Callers check enabled before
+// building a record, so tracing costs a field read when it's turned off.
+// Only the event loop writes to the trace.
+class Trace {
+
+    static final int EXECUTE = 0;
+    static final int CONNECTION_STATE = 1;
+    static final int MTU_CHANGED = 2;
+    static final int READ_REQUEST = 3;
+    static final int WRITE_REQUEST = 4;
+    static final int DESCRIPTOR_READ = 5;
+    static final int DESCRIPTOR_WRITE = 6;
+    static final int EXECUTE_WRITE = 7;
+    static final int NOTIFICATION_SENT = 8;
+    static final int NOTIFICATION_DROPPED = 9;
+    static final int WRITE_FILTERED = 10;
+    static final int PHY_CHANGED = 11;
+    static final int SERVICE_ADDED = 12;
+
+    static final String[] EVENT_NAMES = {
+            "execute", "connectionState", "mtuChanged", "readRequest", "writeRequest",
+            "descriptorRead", "descriptorWrite", "executeWrite", "notificationSent", "notificationDropped",
+            "writeFiltered", "phyChanged", "serviceAdded"
+    };
+
+    // names of the two arguments of each event, null if unused
+    static final String[][] ARGUMENT_NAMES = {
+            {null, null},
+            {"status", "newState"},
+            {"mtu", null},
+            {"requestId", "offset"},
+            {"requestId", "length"},
+            {"requestId", "offset"},
+            {"requestId", "value"},
+            {"requestId", "execute"},
+            {"status", null},
+            {"depth", null},
+            {"requestId", "reason"},
+            {"txPhy", "rxPhy"},
+            {"status", null}
+    };
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    // time, event, device, symbol, a, b
+    private static final int RECORD_SIZE = 6;
+
+    boolean enabled;
+
+    private long[] records = new long[0];
+    private int capacity;
+    private int next;
+    private int count;
+
+    // attributes and actions are stored as indexes into this table
+    private final Map<Object, Integer> symbols = new HashMap<>();
+    private final List<Object> symbolTable = new ArrayList<>();
+
+    void configure(boolean enabled, int capacity) {
+        if (capacity != this.capacity) {
+            records = new long[capacity * RECORD_SIZE];
+            this.capacity = capacity;
+            clear();
+        }
+        this.enabled = enabled && capacity > 0;
+    }
+
+    // device is from address(), symbol from symbol() or -1
+    void record(int event, long device, int symbol, long a, long b) {
+        int i = next * RECORD_SIZE;
+        records[i] = System.nanoTime();
+        records[i + 1] = event;
+        records[i + 2] = device;
+        records[i + 3] = symbol;
+        records[i + 4] = a;
+        records[i + 5] = b;
+
+        next = (next + 1) % capacity;
+        if (count < capacity) {
+            count++;
+        }
+    }
+
+    int symbol(Object key) {
+        Integer index = symbols.get(key);
+        if (index == null) {
+            index = symbolTable.size();
+            symbols.put(key, index);
+            symbolTable.add(key);
+        }
+        return index;
+    }
+
+    Object getSymbol(int index) {
+        return index < 0 ? null : symbolTable.get(index);
+    }
+
+    int size() {
+        return count;
+    }
+
+    // field of a record, 0 is the oldest record
+    private long get(int record, int field) {
+        int start = (next - count + capacity) % capacity;
+        return records[((start + record) % capacity) * RECORD_SIZE + field];
+    }
+
+    long getTime(int record) {
+        return get(record, 0);
+    }
+
+    int getEvent(int record) {
+        return (int) get(record, 1);
+    }
+
+    long getDevice(int record) {
+        return get(record, 2);
+    }
+
+    int getSymbolIndex(int record) {
+        return (int) get(record, 3);
+    }
+
+    long getA(int record) {
+        return get(record, 4);
+    }
+
+    long getB(int record) {
+        return get(record, 5);
+    }
+
+    void clear() {
+        next = 0;
+        count = 0;
+        symbols.clear();
+        symbolTable.clear();
+    }
+
+    // "AA:BB:CC:DD:EE:FF" as a 48 bit number
+    static long address(String address) {
+        long value = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                value = (value << 4) | digit;
+            }
+        }
+        return value;
+    }
+
+    static String address(long value) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (value >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+}
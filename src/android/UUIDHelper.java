@@ -15,33 +15,116 @@
 package com.megster.cordova.ble.peripheral;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+// Parses and formats UUIDs without regular expressions or temporary strings.
+// 128 bit UUIDs are parsed by UUID.fromString.
+// 16 bit UUIDs are cached, so the same UUID and short string instances are
+// returned every time.
 public class UUIDHelper {
 
     // base UUID used to build 128 bit Bluetooth UUIDs
     public static final String UUID_BASE = "0000XXXX-0000-1000-8000-00805f9b34fb";
 
-    // handle 16 and 128 bit UUIDs
-    public static UUID uuidFromString(String uuid) {
+    // 0000XXXX-0000-1000-8000-00805f9b34fb as two longs
+    private static final long BASE_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // 16 bit UUIDs and their short strings, in pages of 256 created when first used
+    private static final UUID[][] shortUUIDs = new UUID[256][];
+    private static final String[][] shortStrings = new String[256][];
 
-        if (uuid.length() == 4) {
-            uuid = UUID_BASE.replace("XXXX", uuid);
+    // handle 16, 32 and 128 bit UUIDs
+    public static UUID uuidFromString(String uuid) {
+        switch (uuid.length()) {
+            case 4:
+                return uuidFrom16Bit((int) parseHex(uuid, 0, 4));
+            case 8:
+                long value = parseHex(uuid, 0, 8);
+                return new UUID((value << 32) | BASE_MOST_SIGNIFICANT_BITS, BASE_LEAST_SIGNIFICANT_BITS);
+            case 36:
+                return parse128Bit(uuid);
+            default:
+                throw new IllegalArgumentException("Invalid UUID string: " + uuid);
         }
-        return UUID.fromString(uuid);
     }
 
     // return 16 bit UUIDs where possible
     public static String uuidToString(UUID uuid) {
-        String longUUID = uuid.toString();
-        Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(longUUID);
-        if (matcher.matches()) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() == BASE_LEAST_SIGNIFICANT_BITS
+                && (msb & 0xFFFF0000FFFFFFFFL) == BASE_MOST_SIGNIFICANT_BITS) {
             // 16 bit UUID
-            return matcher.group(1);
+            return shortString((int) (msb >>> 32));
         } else {
-            return longUUID;
+            return uuid.toString();
+        }
+    }
+
+    // bytes needed for the UUID in advertising data, 2, 4 or 16
+    public static int uuidLength(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_LEAST_SIGNIFICANT_BITS
+                || (msb & 0xFFFFFFFFL) != BASE_MOST_SIGNIFICANT_BITS) {
+            return 16;
+        }
+        return (msb >>> 48) == 0 ? 2 : 4;
+    }
+
+    public static UUID uuidFrom16Bit(int value) {
+        UUID[] page = shortUUIDs[value >>> 8];
+        if (page == null) {
+            page = new UUID[256];
+            shortUUIDs[value >>> 8] = page;
+        }
+
+        UUID uuid = page[value & 0xFF];
+        if (uuid == null) {
+            uuid = new UUID(((long) value << 32) | BASE_MOST_SIGNIFICANT_BITS, BASE_LEAST_SIGNIFICANT_BITS);
+            page[value & 0xFF] = uuid;
+        }
+        return uuid;
+    }
+
+    private static String shortString(int value) {
+        String[] page = shortStrings[value >>> 8];
+        if (page == null) {
+            page = new String[256];
+            shortStrings[value >>> 8] = page;
+        }
+
+        String string = page[value & 0xFF];
+        if (string == null) {
+            string = new String(new char[] {
+                    HEX[(value >> 12) & 0xF], HEX[(value >> 8) & 0xF], HEX[(value >> 4) & 0xF], HEX[value & 0xF]
+            });
+            page[value & 0xFF] = string;
+        }
+        return string;
+    }
+
+    // xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx, UUID.fromString is already faster
+    // than parsing the digits here, base UUIDs still return the cached instance
+    private static UUID parse128Bit(String uuid) {
+        UUID parsed = UUID.fromString(uuid);
+        long msb = parsed.getMostSignificantBits();
+        if (parsed.getLeastSignificantBits() == BASE_LEAST_SIGNIFICANT_BITS
+                && (msb & 0xFFFF0000FFFFFFFFL) == BASE_MOST_SIGNIFICANT_BITS) {
+            return uuidFrom16Bit((int) (msb >>> 32));
+        }
+        return parsed;
+    }
+
+    private static long parseHex(String string, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(string.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid UUID string: " + string);
+            }
+            value = (value << 4) | digit;
         }
+        return value;
     }
-}
\ No newline at end of file
+}
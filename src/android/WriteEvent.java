@@ -0,0 +1,76 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+// A central wrote a value to a characteristic
+class WriteEvent {
+
+    // binary frame format version, see encodeFrame
+    static final int FRAME_VERSION = 1;
+
+    // service UUID, characteristic UUID and value length
+    private static final int EVENT_HEADER_SIZE = 16 + 16 + 2;
+    private static final int FRAME_HEADER_SIZE = 1 + 4;
+
+    final UUID service;
+    final UUID characteristic;
+    final byte[] value;
+
+    // System.nanoTime() when the write request arrived, before it waited for the event loop
+    final long received;
+
+    WriteEvent(UUID service, UUID characteristic, byte[] value, long received) {
+        this.service = service;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.received = received;
+    }
+
+    // Binary frame, sent to JavaScript as one ArrayBuffer. All numbers are big endian.
+    //
+    //   uint8     version
+    //   uint32    event count
+    //   for each event
+    //     16 bytes  service UUID
+    //     16 bytes  characteristic UUID
+    //     uint16    value length
+    //     n bytes   value
+    static byte[] encodeFrame(List<WriteEvent> events) {
+        int size = FRAME_HEADER_SIZE;
+        for (WriteEvent event : events) {
+            size += EVENT_HEADER_SIZE + event.value.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) FRAME_VERSION);
+        buffer.putInt(events.size());
+
+        for (WriteEvent event : events) {
+            buffer.putLong(event.service.getMostSignificantBits());
+            buffer.putLong(event.service.getLeastSignificantBits());
+            buffer.putLong(event.characteristic.getMostSignificantBits());
+            buffer.putLong(event.characteristic.getLeastSignificantBits());
+            buffer.putShort((short) event.value.length);
+            buffer.put(event.value);
+        }
+
+        return buffer.array();
+    }
+
+}
@@ -0,0 +1,84 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects write events and delivers them to JavaScript as one array,
+// either when the time window closes or when the batch is full. Without
+// a window, batches are only delivered when they are full.
+// This saves a bridge call per write when centrals write quickly.
+// Only used from the event loop, which is also the handler's thread.
+class WriteEventBatcher {
+
+    interface Listener {
+        void onBatch(List<WriteEvent> events);
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+
+    private int windowMillis;
+    private int maxEvents;
+    private List<WriteEvent> events = new ArrayList<>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    WriteEventBatcher(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    // a window of 0 and maxEvents of 0 disables batching
+    void configure(int windowMillis, int maxEvents) {
+        this.windowMillis = windowMillis;
+        this.maxEvents = maxEvents;
+        flush();
+    }
+
+    boolean isEnabled() {
+        return windowMillis > 0 || maxEvents > 0;
+    }
+
+    void add(WriteEvent event) {
+        events.add(event);
+
+        if (maxEvents > 0 && events.size() >= maxEvents) {
+            flush();
+        } else if (events.size() == 1 && windowMillis > 0) {
+            handler.postDelayed(flushRunnable, windowMillis);
+        }
+    }
+
+    void flush() {
+        handler.removeCallbacks(flushRunnable);
+        if (events.isEmpty()) {
+            return;
+        }
+
+        List<WriteEvent> batch = events;
+        events = new ArrayList<>();
+        listener.onBatch(batch);
+    }
+
+}
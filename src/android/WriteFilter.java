@@ -0,0 +1,148 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Rules for writes to one characteristic, checked before a write is passed
+// to JavaScript. Writes can be rejected because of their length or because
+// the device is over its rate limit, dropped when they repeat the device's
+// last value, or conflated so only the device's latest value in a time window
+// is passed on. D is the device type, times are in milliseconds.
+class WriteFilter<D> {
+
+    // results of check
+    static final int FORWARD = 0;
+    static final int DUPLICATE = 1;
+    static final int INVALID_LENGTH = 2;
+    static final int RATE_LIMITED = 3;
+
+    private final int minLength;
+    private final int maxLength;
+    private final boolean dropDuplicates;
+    private final long conflateMillis;
+    private final double ratePerMilli;
+    private final double burst;
+
+    private final Map<D, DeviceState> devices = new HashMap<>();
+    // kept apart from devices so a window still closes after the device disconnects
+    private final Map<D, Conflated> conflated = new HashMap<>();
+
+    // rate is writes per second for each device, 0 for no limit
+    WriteFilter(int minLength, int maxLength, boolean dropDuplicates, long conflateMillis, double rate, double burst) {
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.dropDuplicates = dropDuplicates;
+        this.conflateMillis = conflateMillis;
+        this.ratePerMilli = rate / 1000;
+        this.burst = Math.max(1, burst);
+    }
+
+    // Doesn't change any state, call accept once the write has been accepted.
+    int check(D device, byte[] value, long now) {
+        int length = value == null ? 0 : value.length;
+        if (length < minLength || length > maxLength) {
+            return INVALID_LENGTH;
+        }
+
+        DeviceState state = devices.get(device);
+        if (ratePerMilli > 0 && tokens(state, now) < 1) {
+            return RATE_LIMITED;
+        }
+
+        if (dropDuplicates && state != null && Arrays.equals(value, state.lastValue)) {
+            return DUPLICATE;
+        }
+        return FORWARD;
+    }
+
+    // A write that passed check was accepted, take a token from the
+    // device's rate limit and remember the value to drop duplicates.
+    void accept(D device, byte[] value, long now) {
+        DeviceState state = devices.get(device);
+        if (state == null) {
+            state = new DeviceState(burst, now);
+            devices.put(device, state);
+        }
+
+        if (ratePerMilli > 0) {
+            state.tokens = tokens(state, now) - 1;
+            state.updated = now;
+        }
+        state.lastValue = value;
+    }
+
+    long getConflateMillis() {
+        return conflateMillis;
+    }
+
+    // Hold the device's value until the window closes. Returns true for the
+    // first value in a window, the caller then schedules takeConflated.
+    // received is when the write arrived, see getConflatedReceived.
+    boolean conflate(D device, byte[] value, long received) {
+        Conflated window = conflated.get(device);
+        boolean first = window == null;
+        if (first) {
+            window = new Conflated();
+            conflated.put(device, window);
+        }
+        window.value = value;
+        window.received = received;
+        return first;
+    }
+
+    // when the value takeConflated returns arrived
+    long getConflatedReceived(D device) {
+        Conflated window = conflated.get(device);
+        return window == null ? 0 : window.received;
+    }
+
+    // the device's latest value in the window that just closed
+    byte[] takeConflated(D device) {
+        Conflated window = conflated.remove(device);
+        return window == null ? null : window.value;
+    }
+
+    void removeDevice(D device) {
+        devices.remove(device);
+    }
+
+    // tokens in the device's bucket at now
+    private double tokens(DeviceState state, long now) {
+        if (state == null) {
+            return burst;
+        }
+        return Math.min(burst, state.tokens + (now - state.updated) * ratePerMilli);
+    }
+
+    private static class DeviceState {
+        double tokens;
+        long updated;
+        byte[] lastValue;
+
+        DeviceState(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private static class Conflated {
+        byte[] value;
+        long received;
+    }
+
+}
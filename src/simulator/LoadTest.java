@@ -0,0 +1,356 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+// Load test for the notification and write paths with 1 to 50 simulated
+// centrals. Each central connects, negotiates the MTU, subscribes and then
+// writes at a fixed rate while the peripheral updates a characteristic.
+// Writes longer than the negotiated MTU allows are sent as prepared writes
+// and reassembled, and every write goes through a WriteFilter.
+//
+//   javac -d /tmp/loadtest src/android/{GattTransport,NotificationScheduler,NotificationQueue,NotificationFanout,SubscriptionIndex,WriteEvent,WriteFilter,PreparedWriteBuffer,UUIDHelper}.java src/simulator/*.java
+//   java -cp /tmp/loadtest com.megster.cordova.ble.peripheral.LoadTest centrals=1,10,50 rate=200
+//
+// Options are key=value, times are in milliseconds unless noted.
+public class LoadTest {
+
+    private static final UUID SERVICE = UUIDHelper.uuidFromString("ff10");
+    private static final UUID NOTIFY_CHARACTERISTIC = UUIDHelper.uuidFromString("ff11");
+    private static final UUID WRITE_CHARACTERISTIC = UUIDHelper.uuidFromString("ff12");
+
+    // MTU until the exchange, and the ATT overhead of writes and prepared writes
+    private static final int DEFAULT_MTU = 23;
+    private static final int WRITE_HEADER_SIZE = 3;
+    private static final int PREPARE_WRITE_HEADER_SIZE = 5;
+
+    private static final String[][] DEFAULTS = {
+            {"centrals", "1,5,10,25,50"},
+            {"duration", "10000"},      // simulated time
+            {"rate", "100"},            // characteristic updates per second
+            {"size", "20"},             // bytes per update
+            {"indicate", "false"},
+            {"conflate", "false"},      // last value wins notifications
+            {"mtu", "185"},
+            {"ackLatency", "7.5"},      // connection interval
+            {"ackJitter", "7.5"},
+            {"writeRate", "20"},        // writes per second per central, 0 for none
+            {"writeSize", "20"},        // bytes per write
+            {"writeLimit", "0"},        // WriteFilter rate limit per central, 0 for none
+            {"batchWindow", "10"},      // write event batching window
+            {"capacity", "64"},         // notification queue capacity
+            {"seed", "1"}
+    };
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                System.err.println("Unknown option " + arg + ", options are " + options.keySet());
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        System.out.println(options);
+        System.out.printf("%8s %10s %10s %8s %8s %8s %8s %8s %9s %8s %10s %8s %8s %12s%n",
+                "centrals", "notify/s", "KB/s", "p50 ms", "p95 ms", "p99 ms", "max ms",
+                "dropped", "conflated", "failed", "writes/s", "filtered", "wall ms", "events/s");
+
+        for (String centrals : options.get("centrals").split(",")) {
+            Result result = new LoadTest(Integer.parseInt(centrals.trim()), options).run();
+            result.print();
+        }
+    }
+
+    private final int centralCount;
+    private final long duration;
+    private final long updateInterval;
+    private final int size;
+    private final boolean indicate;
+    private final boolean conflate;
+    private final int mtu;
+    private final long ackLatency;
+    private final long ackJitter;
+    private final long writeInterval;
+    private final int writeSize;
+    private final long batchWindow;
+
+    private final Simulation simulation = new Simulation();
+    private final Random random;
+    private final SimulatedGattTransport<UUID> transport;
+    private final NotificationScheduler<VirtualCentral, UUID> scheduler;
+    private final SubscriptionIndex<UUID, VirtualCentral> subscriptions = new SubscriptionIndex<>();
+    private final NotificationFanout<VirtualCentral, UUID> fanout;
+    private final Map<VirtualCentral, Integer> mtus = new HashMap<>();
+    private final WriteFilter<VirtualCentral> writeFilter;
+    private final List<WriteEvent> pendingWrites = new ArrayList<>();
+    private final Result result = new Result();
+
+    private LoadTest(int centralCount, Map<String, String> options) {
+        this.centralCount = centralCount;
+        duration = micros(options.get("duration"));
+        updateInterval = 1000000L / Long.parseLong(options.get("rate"));
+        size = Integer.parseInt(options.get("size"));
+        indicate = Boolean.parseBoolean(options.get("indicate"));
+        conflate = Boolean.parseBoolean(options.get("conflate"));
+        mtu = Integer.parseInt(options.get("mtu"));
+        ackLatency = micros(options.get("ackLatency"));
+        ackJitter = micros(options.get("ackJitter"));
+        long writeRate = Long.parseLong(options.get("writeRate"));
+        writeInterval = writeRate == 0 ? 0 : 1000000L / writeRate;
+        writeSize = Integer.parseInt(options.get("writeSize"));
+        double writeLimit = Double.parseDouble(options.get("writeLimit"));
+        writeFilter = new WriteFilter<>(0, PreparedWriteBuffer.MAX_ATTRIBUTE_LENGTH, false, 0, writeLimit, writeLimit);
+        batchWindow = micros(options.get("batchWindow"));
+
+        random = new Random(Long.parseLong(options.get("seed")));
+        transport = new SimulatedGattTransport<>(simulation, random);
+        scheduler = new NotificationScheduler<>(transport, Integer.parseInt(options.get("capacity")));
+        transport.setScheduler(scheduler);
+
+        fanout = new NotificationFanout<>(subscriptions, new NotificationFanout.Listener<VirtualCentral, UUID>() {
+            @Override
+            public void onConflated(VirtualCentral central, NotificationQueue.Notification<UUID> replaced) {
+                result.conflated++;
+            }
+
+            @Override
+            public void onDropped(VirtualCentral central, NotificationQueue.Notification<UUID> notification, NotificationQueue<UUID> queue) {
+                // counted by the queue
+            }
+        });
+        fanout.setConflated(NOTIFY_CHARACTERISTIC, conflate);
+    }
+
+    private Result run() {
+        for (int i = 0; i < centralCount; i++) {
+            String address = String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+            final VirtualCentral central = new VirtualCentral(address, mtu, ackLatency, ackJitter, writeInterval);
+
+            // stagger the connections over the first 100 ms
+            simulation.schedule((long) (random.nextDouble() * 100000), new Runnable() {
+                @Override
+                public void run() {
+                    connect(central);
+                }
+            });
+        }
+
+        simulation.schedule(updateInterval, new Runnable() {
+            @Override
+            public void run() {
+                updateCharacteristic();
+                simulation.schedule(updateInterval, this);
+            }
+        });
+
+        simulation.schedule(batchWindow, new Runnable() {
+            @Override
+            public void run() {
+                flushWrites();
+                simulation.schedule(batchWindow, this);
+            }
+        });
+
+        long start = System.nanoTime();
+        simulation.runUntil(duration);
+        result.wallMillis = (System.nanoTime() - start) / 1000000;
+        result.events = simulation.getProcessed();
+
+        result.centrals = centralCount;
+        result.seconds = duration / 1000000.0;
+        for (NotificationQueue<UUID> queue : scheduler.getQueues().values()) {
+            result.dropped += queue.getDropped();
+        }
+        for (VirtualCentral central : scheduler.getQueues().keySet()) {
+            result.bytes += central.bytesReceived;
+        }
+        return result;
+    }
+
+    // connect, then exchange the MTU and subscribe on the following connection events
+    private void connect(final VirtualCentral central) {
+        central.connected = true;
+
+        simulation.schedule(ackLatency, new Runnable() {
+            @Override
+            public void run() {
+                mtus.put(central, central.mtu);
+            }
+        });
+
+        simulation.schedule(ackLatency * 2, new Runnable() {
+            @Override
+            public void run() {
+                // write to the Client Characteristic Configuration descriptor
+                subscriptions.subscribe(NOTIFY_CHARACTERISTIC, central, indicate ? SubscriptionIndex.INDICATE : SubscriptionIndex.NOTIFY);
+                transport.sendResponse(central, 0, 0, 0, null);
+
+                if (central.writeInterval > 0) {
+                    simulation.schedule((long) (random.nextDouble() * central.writeInterval), new Runnable() {
+                        @Override
+                        public void run() {
+                            write(central);
+                            simulation.schedule(central.writeInterval, this);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // the plugin's NotificationFanout, as setCharacteristicValue uses it
+    private void updateCharacteristic() {
+        byte[] value = new byte[size];
+        random.nextBytes(value);
+        fanout.queue(scheduler, NOTIFY_CHARACTERISTIC, value, new Sample(simulation.now()), null);
+    }
+
+    // A write request when the value fits the negotiated MTU, otherwise prepared
+    // writes of MTU - 5 bytes reassembled by the PreparedWriteBuffer and executed
+    private void write(VirtualCentral central) {
+        byte[] value = new byte[writeSize];
+        random.nextBytes(value);
+        central.writesSent++;
+        result.writes++;
+
+        Integer negotiated = mtus.get(central);
+        int mtu = negotiated == null ? DEFAULT_MTU : negotiated;
+        if (value.length <= mtu - WRITE_HEADER_SIZE) {
+            filterWrite(central, value);
+            transport.sendResponse(central, (int) central.writesSent, 0, 0, value);
+            return;
+        }
+
+        PreparedWriteBuffer<UUID> buffer = new PreparedWriteBuffer<>();
+        for (int offset = 0; offset < value.length; offset += mtu - PREPARE_WRITE_HEADER_SIZE) {
+            byte[] fragment = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + mtu - PREPARE_WRITE_HEADER_SIZE));
+            buffer.write(WRITE_CHARACTERISTIC, offset, fragment);
+            transport.sendResponse(central, (int) central.writesSent, 0, offset, fragment);
+        }
+
+        // execute write
+        for (byte[] reassembled : buffer.values().values()) {
+            filterWrite(central, reassembled);
+        }
+        transport.sendResponse(central, (int) central.writesSent, 0, 0, null);
+    }
+
+    // the plugin's WriteFilter, filtered writes still get a response
+    private void filterWrite(VirtualCentral central, byte[] value) {
+        long now = simulation.now() / 1000;
+        int filtered = writeFilter.check(central, value, now);
+        if (filtered == WriteFilter.FORWARD) {
+            writeFilter.accept(central, value, now);
+            pendingWrites.add(new WriteEvent(SERVICE, WRITE_CHARACTERISTIC, value, System.nanoTime()));
+        } else {
+            result.filtered++;
+        }
+    }
+
+    private void flushWrites() {
+        if (!pendingWrites.isEmpty()) {
+            result.frameBytes += WriteEvent.encodeFrame(pendingWrites).length;
+            pendingWrites.clear();
+        }
+    }
+
+    private static long micros(String millis) {
+        return (long) (Double.parseDouble(millis) * 1000);
+    }
+
+    // latency from the update until each central acknowledged it
+    private class Sample implements NotificationQueue.Callback<UUID> {
+        private final long start;
+
+        Sample(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void onSent(String address, NotificationQueue.Notification<UUID> notification) {
+            result.record(simulation.now() - start);
+        }
+
+        @Override
+        public void onFailed(String address, NotificationQueue.Notification<UUID> notification, String reason) {
+            result.failed++;
+        }
+    }
+
+    private static class Result {
+        int centrals;
+        double seconds;
+        long[] latencies = new long[1024];
+        int count;
+        long bytes;
+        long dropped;
+        long conflated;
+        long failed;
+        long writes;
+        long filtered;
+        long frameBytes;
+        long wallMillis;
+        long events;
+
+        void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+
+        void print() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("%8d %10.0f %10.1f %8.1f %8.1f %8.1f %8.1f %8d %9d %8d %10.0f %8d %8d %12.0f%n",
+                    centrals,
+                    count / seconds,
+                    bytes / seconds / 1024,
+                    percentile(sorted, 50),
+                    percentile(sorted, 95),
+                    percentile(sorted, 99),
+                    percentile(sorted, 100),
+                    dropped,
+                    conflated,
+                    failed,
+                    writes / seconds,
+                    filtered,
+                    wallMillis,
+                    wallMillis == 0 ? 0 : events * 1000.0 / wallMillis);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.Random;
+
+// In memory GattTransport. Notifications are delivered to VirtualCentrals and
+// acknowledged through the NotificationScheduler after each central's latency.
+class SimulatedGattTransport<A> implements GattTransport<VirtualCentral, A> {
+
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private final Simulation simulation;
+    private final Random random;
+    private NotificationScheduler<VirtualCentral, A> scheduler;
+
+    private long truncated;
+
+    SimulatedGattTransport(Simulation simulation, Random random) {
+        this.simulation = simulation;
+        this.random = random;
+    }
+
+    void setScheduler(NotificationScheduler<VirtualCentral, A> scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // notifications longer than the MTU allows, a real stack truncates these
+    long getTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String getAddress(VirtualCentral central) {
+        return central.address;
+    }
+
+    @Override
+    public boolean notify(final VirtualCentral central, A characteristic, byte[] value, boolean confirm) {
+        if (!central.connected) {
+            return false;
+        }
+
+        int length = value.length;
+        if (length > central.mtu - ATT_HEADER_SIZE) {
+            truncated++;
+            length = central.mtu - ATT_HEADER_SIZE;
+        }
+        central.notificationsReceived++;
+        central.bytesReceived += length;
+
+        simulation.schedule(latency(central), new Runnable() {
+            @Override
+            public void run() {
+                scheduler.notificationSent(central, central.connected, "disconnected");
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean sendResponse(VirtualCentral central, int requestId, int status, int offset, byte[] value) {
+        if (!central.connected) {
+            return false;
+        }
+        central.responsesReceived++;
+        return true;
+    }
+
+    private long latency(VirtualCentral central) {
+        if (central.ackJitter <= 0) {
+            return central.ackLatency;
+        }
+        return central.ackLatency + (long) (random.nextDouble() * central.ackJitter);
+    }
+
+}
@@ -0,0 +1,73 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+import java.util.PriorityQueue;
+
+// Discrete event loop with a virtual clock in microseconds. Everything in a
+// simulation runs on the calling thread, like the plugin's event loop, so
+// hours of connection events take seconds to run.
+class Simulation {
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private long processed;
+
+    long now() {
+        return now;
+    }
+
+    long getProcessed() {
+        return processed;
+    }
+
+    void schedule(long delayMicros, Runnable task) {
+        events.add(new Event(now + Math.max(0, delayMicros), sequence++, task));
+    }
+
+    // run events until the clock reaches endMicros
+    void runUntil(long endMicros) {
+        Event event;
+        while ((event = events.peek()) != null && event.time <= endMicros) {
+            events.poll();
+            now = event.time;
+            processed++;
+            event.task.run();
+        }
+        now = endMicros;
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+
+        Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+// (c) 2018 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.peripheral;
+
+// A scripted central. It acknowledges each notification after ackLatency
+// plus up to ackJitter microseconds, which stands in for the connection
+// interval, and writes every writeInterval microseconds (0 for no writes).
+class VirtualCentral {
+
+    final String address;
+    final int mtu;
+    final long ackLatency;
+    final long ackJitter;
+    final long writeInterval;
+
+    boolean connected;
+
+    long notificationsReceived;
+    long bytesReceived;
+    long writesSent;
+    long responsesReceived;
+
+    VirtualCentral(String address, int mtu, long ackLatency, long ackJitter, long writeInterval) {
+        this.address = address;
+        this.mtu = mtu;
+        this.ackLatency = ackLatency;
+        this.ackJitter = ackJitter;
+        this.writeInterval = writeInterval;
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+
+}
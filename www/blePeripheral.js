@@ -12,7 +12,7 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-/* global cordova, module, console, document, Uint8Array, atob, Promise, ArrayBuffer*/
+/* global cordova, module, console, document, Uint8Array, DataView, atob, btoa, Promise, ArrayBuffer*/
 "use strict";
 
 // Util functions for translating nested array buffers going across the Cordova bridge
@@ -30,6 +30,15 @@ var base64ToArrayBuffer = function(b64) {
     return stringToArrayBuffer(atob(b64));
 };
 
+var arrayBufferToBase64 = function(buffer) {
+    var bytes = new Uint8Array(buffer);
+    var str = '';
+    for (var i = 0; i < bytes.length; i++) {
+        str += String.fromCharCode(bytes[i]);
+    }
+    return btoa(str);
+};
+
 function massageMessageNativeToJs(message) {
     if (message.CDVType == 'ArrayBuffer') {
         message = base64ToArrayBuffer(message.data);
@@ -49,20 +58,91 @@ function convertToNativeJS(object) {
     });
 }
 
+// Binary write request frames, see WriteEvent.java
+// uint8 version, uint32 count, then for each request
+// 16 byte service UUID, 16 byte characteristic UUID, uint16 length, value
+
+var hex = [];
+for (var h = 0; h < 256; h++) {
+    hex[h] = (h < 16 ? '0' : '') + h.toString(16);
+}
+
+function bytesToUUID(bytes, offset) {
+    var uuid = '';
+    for (var i = 0; i < 16; i++) {
+        if (i === 4 || i === 6 || i === 8 || i === 10) {
+            uuid += '-';
+        }
+        uuid += hex[bytes[offset + i]];
+    }
+    return uuid;
+}
+
+function decodeWriteRequestFrame(buffer) {
+    var view = new DataView(buffer);
+    var bytes = new Uint8Array(buffer);
+    var requests = [];
+
+    if (view.getUint8(0) !== 1) {
+        console.log('Unsupported write request frame version ' + view.getUint8(0));
+        return requests;
+    }
+
+    var count = view.getUint32(1);
+    var offset = 5;
+    for (var i = 0; i < count; i++) {
+        var length = view.getUint16(offset + 32);
+        var start = offset + 34;
+        requests.push({
+            service: bytesToUUID(bytes, offset),
+            characteristic: bytesToUUID(bytes, offset + 16),
+            value: buffer.slice(start, start + length)
+        });
+        offset = start + length;
+    }
+    return requests;
+}
+
 // end Util functions
 
 var onWriteRequestCallback;
+var onReadRequestCallback;
+var readRequestCallbackRegistered = false;
 var onBluetoothStateChangeCallback;
+var onConnectionStateChangeCallback;
+var connectionStateCallbackRegistered = false;
+var onRecoveryCallback;
+var onL2capEventCallback;
+var l2capCallbackRegistered = false;
+var recoveryCallbackRegistered = false;
 
 function registerWriteRequestCallback() {
 
+    var deliverWriteRequest = function(json) {
+      if (onWriteRequestCallback && typeof onWriteRequestCallback === 'function') {
+        onWriteRequestCallback(json);
+      }
+    };
+
     var didReceiveWriteRequest = function(json) {
+      // binary frames hold one or more write requests
+      if (json instanceof ArrayBuffer) {
+        decodeWriteRequestFrame(json).forEach(deliverWriteRequest);
+        return;
+      }
+
       console.log('didReceiveWriteRequest');
       console.log(json);
-      convertToNativeJS(json);
 
-      if (onWriteRequestCallback && typeof onWriteRequestCallback === 'function') {
-        onWriteRequestCallback(json);
+      // batched write requests arrive as an array
+      if (Array.isArray(json)) {
+        json.forEach(function(request) {
+          convertToNativeJS(request);
+          deliverWriteRequest(request);
+        });
+      } else {
+        convertToNativeJS(json);
+        deliverWriteRequest(json);
       }
     };
 
@@ -94,6 +174,128 @@ function registerBluetoothStateChangeCallback() {
 }
 registerBluetoothStateChangeCallback();
 
+// Android only, registered the first time onConnectionStateChange is called
+function registerConnectionStateChangeCallback() {
+
+    var connectionStateChanged = function(event) {
+      if (onConnectionStateChangeCallback && typeof onConnectionStateChangeCallback === 'function') {
+        onConnectionStateChangeCallback(event);
+      }
+    };
+
+    var failure = function() {
+        // this should never happen
+        console.log("Failed to add setConnectionStateChangedListener");
+    };
+
+    cordova.exec(connectionStateChanged, failure, 'BLEPeripheral', 'setConnectionStateChangedListener', []);
+    connectionStateCallbackRegistered = true;
+}
+
+// Android only, registered the first time onRecovery is called, which turns recovery on
+function registerRecoveryCallback() {
+
+    var recovered = function(event) {
+      if (onRecoveryCallback && typeof onRecoveryCallback === 'function') {
+        onRecoveryCallback(event);
+      }
+    };
+
+    var failure = function() {
+        // this should never happen
+        console.log("Failed to add setRecoveryListener");
+    };
+
+    cordova.exec(recovered, failure, 'BLEPeripheral', 'setRecoveryListener', []);
+    recoveryCallbackRegistered = true;
+}
+
+// Android only, registered the first time onL2capEvent is called
+// Received data is acknowledged once the callback (or its promise) is done, acknowledgements
+// are batched and the plugin stops reading a channel when too much is unacknowledged
+var L2CAP_ACKNOWLEDGE_BYTES = 64 * 1024;
+
+function registerL2capCallback() {
+
+    var unacknowledged = {};
+
+    var acknowledge = function(channel, length) {
+        unacknowledged[channel] = (unacknowledged[channel] || 0) + length;
+        if (unacknowledged[channel] >= L2CAP_ACKNOWLEDGE_BYTES) {
+            cordova.exec(null, null, 'BLEPeripheral', 'l2capAcknowledge', [channel, unacknowledged[channel]]);
+            unacknowledged[channel] = 0;
+        }
+    };
+
+    var l2capEvent = function(event) {
+        if (event instanceof ArrayBuffer) {
+            // uint32 channel id then the data
+            var channel = new DataView(event).getUint32(0);
+            var data = event.slice(4);
+            Promise.resolve()
+                .then(function() {
+                    if (typeof onL2capEventCallback === 'function') {
+                        return onL2capEventCallback({ event: 'data', channel: channel, data: data });
+                    }
+                })
+                .then(function() { acknowledge(channel, data.byteLength); },
+                      function(error) {
+                          console.log('L2CAP data callback failed ' + error);
+                          acknowledge(channel, data.byteLength);
+                      });
+            return;
+        }
+
+        if (event.event === 'closed') {
+            delete unacknowledged[event.channel];
+        }
+        if (typeof onL2capEventCallback === 'function') {
+            onL2capEventCallback(event);
+        }
+    };
+
+    var failure = function() {
+        // this should never happen
+        console.log("Failed to add setL2capListener");
+    };
+
+    cordova.exec(l2capEvent, failure, 'BLEPeripheral', 'setL2capListener', []);
+    l2capCallbackRegistered = true;
+}
+
+// Android only, registered the first time onReadRequest is called
+function registerReadRequestCallback() {
+
+    var respond = function(id, value) {
+        var args = value instanceof ArrayBuffer ? [id, value] : [id, null];
+        cordova.exec(null, null, 'BLEPeripheral', 'respondToReadRequest', args);
+    };
+
+    var didReceiveReadRequest = function(request) {
+        if (!onReadRequestCallback || typeof onReadRequestCallback !== 'function') {
+            respond(request.id, null);
+            return;
+        }
+
+        // the callback returns the value or a promise for it
+        Promise.resolve()
+            .then(function() { return onReadRequestCallback(request); })
+            .then(function(value) { respond(request.id, value); },
+                  function(error) {
+                      console.log('onReadRequest failed', error);
+                      respond(request.id, null);
+                  });
+    };
+
+    var failure = function() {
+        // this should never happen
+        console.log("Failed to add setCharacteristicReadRequestListener");
+    };
+
+    cordova.exec(didReceiveReadRequest, failure, 'BLEPeripheral', 'setCharacteristicReadRequestListener', []);
+    readRequestCallbackRegistered = true;
+}
+
 /* 
 Characteristic premissions are not consistent across platforms. This will need to be reconciled.
 Maybe permissions should be optional and default to read/write based on the properties.
@@ -133,6 +335,18 @@ module.exports = {
         WRITE_ENCRYPTION_REQUIRED: cordova.platformId === 'ios' ? 0x08: 0x20
     },
 
+    // Android only
+    // resolves when the GATT server is open with
+    // { initMillis, extendedAdvertising, maxAdvertisingDataLength, le2MPhy, leCodedPhy }
+    ready: function() {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'ready', []);
+        });
+
+    },
+
+    // on Android the promise resolves with an integer handle for the service
     createService: function(uuid) {
 
         return new Promise(function(resolve, reject) {
@@ -140,6 +354,8 @@ module.exports = {
         });
     },
 
+    // on Android the promise resolves with handles for the service and its characteristics
+    // { service: 0, characteristics: { '2a37': 0, '2a38': 1 } }
     createServiceFromJSON: function(json) {
 
         return new Promise(function(resolve, reject) {
@@ -148,10 +364,47 @@ module.exports = {
 
     },
 
-    addCharacteristic: function(service, characteristic, properties, permissions) {
+    // Android only
+    // adds a whole GATT table, services are added one at a time as the stack confirms each one
+    // resolves with { parseMicros, elapsed, services: [{ uuid, status, micros, handles }] }
+    // parseMicros is the time spent reading the JSON, elapsed is milliseconds until the last service was added
+    // rejected with the same object if any service failed
+    createServicesFromJSON: function(services) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'createServicesFromJSON', [services]);
+        });
+
+    },
+
+    // Android only
+    // compiles service JSON to a binary GATT schema, resolves with an ArrayBuffer
+    // path is optional, relative paths are in the app's files directory
+    compileServices: function(services, path) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'compileServices', [services, path]);
+        });
+
+    },
+
+    // Android only
+    // adds the services in a schema from compileServices, path can be 'asset:www/gatt.bin'
+    // resolves like createServicesFromJSON
+    restoreServices: function(path) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'restoreServices', [path]);
+        });
+
+    },
+
+    // on Android the promise resolves with an integer handle for the characteristic
+    // writeFilter is optional and Android only, see the README
+    addCharacteristic: function(service, characteristic, properties, permissions, writeFilter) {
 
         return new Promise(function(resolve, reject) {
-            cordova.exec(resolve, reject, 'BLEPeripheral', 'addCharacteristic', [service, characteristic, properties, permissions]);
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'addCharacteristic', [service, characteristic, properties, permissions, writeFilter || null]);
         });
 
     },
@@ -172,16 +425,43 @@ module.exports = {
 
     },
 
-    // Future versions should should allow one or multiple services, name should be optional
-    startAdvertising: function(service, localName) {
+    // options are Android only, see the README
+    // on Android service can be an array and the promise resolves with { extended, dropped }
+    startAdvertising: function(service, localName, options) {
+
+        return new Promise(function(resolve, reject) {
+            var args = [service, localName];
+            if (options) {
+                // nested ArrayBuffers aren't converted by cordova.exec, send them as Base64
+                var copy = {};
+                Object.keys(options).forEach(function(key) {
+                    copy[key] = options[key];
+                });
+                ['serviceData', 'manufacturerData'].forEach(function(key) {
+                    if (options[key]) {
+                        copy[key] = options[key].map(function(entry) {
+                            return { uuid: entry.uuid, id: entry.id, data: arrayBufferToBase64(entry.data) };
+                        });
+                    }
+                });
+                args.push(copy);
+            }
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'startAdvertising', args);
+        });
+
+    },
+
+    // Android only
+    stopAdvertising: function() {
 
         return new Promise(function(resolve, reject) {
-            cordova.exec(resolve, reject, 'BLEPeripheral', 'startAdvertising', [service, localName]);
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'stopAdvertising', []);
         });
 
     },
 
     // setting the value automatically notifies subscribers
+    // on Android the promise resolves once every subscriber has received the value
     setCharacteristicValue: function(service, characteristic, value) {
 
         return new Promise(function(resolve, reject) {
@@ -194,6 +474,144 @@ module.exports = {
 
     },
 
+    // Android only
+    // sets multiple characteristic values in one call, notifications are sent together
+    // values is an array of { service: '1234', characteristic: '5678', value: someArrayBuffer }
+    // the promise resolves with [{ service, characteristic }] in the same order
+    // if any value fails, the promise is rejected with the same array and error is set on the failed entries
+    setCharacteristicValues: function(values) {
+
+        return new Promise(function(resolve, reject) {
+            // nested ArrayBuffers aren't converted by cordova.exec, so pass a flat list of arguments
+            var args = [];
+            for (var i = 0; i < values.length; i++) {
+                if (values[i].value.constructor !== ArrayBuffer) {
+                    reject('value must be an ArrayBuffer');
+                    return;
+                }
+                args.push(values[i].service, values[i].characteristic, values[i].value);
+            }
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setCharacteristicValues', args);
+        });
+
+    },
+
+    // Android only
+    // sends a value larger than the MTU to subscribers as a series of notifications
+    // progress is optional and called with { type: 'progress', devices, bytesSent, totalBytes, elapsed, bytesPerSecond }
+    // the promise resolves with the same object, with type 'complete', once all subscribers have the value
+    streamCharacteristicValue: function(service, characteristic, value, progress) {
+
+        return new Promise(function(resolve, reject) {
+            if (value.constructor !== ArrayBuffer) {
+                reject('value must be an ArrayBuffer');
+                return;
+            }
+
+            var success = function(status) {
+                if (status.type === 'progress') {
+                    if (progress && typeof progress === 'function') {
+                        progress(status);
+                    }
+                } else {
+                    resolve(status);
+                }
+            };
+
+            cordova.exec(success, reject, 'BLEPeripheral', 'streamCharacteristicValue', [service, characteristic, value]);
+        });
+
+    },
+
+    // Android only
+    // returns [{ device: 'AA:BB:CC:DD:EE:FF', mtu: 23, depth: 0, sent: 10, failed: 0, dropped: 0, conflated: 0 }]
+    getNotificationQueueStats: function() {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'getNotificationQueueStats', []);
+        });
+
+    },
+
+    // Android only
+    // last value wins: each central has at most one waiting notification for the characteristic
+    setNotificationConflation: function(service, characteristic, enabled) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setNotificationConflation', [service, characteristic, !!enabled]);
+        });
+
+    },
+
+    // Android only
+    // counters and latency histograms for each characteristic and connected device
+    // pass true to get the changes since the previous call with delta true
+    getStatistics: function(delta) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'getStatistics', [!!delta]);
+        });
+
+    },
+
+    // Android only
+    // record GATT callbacks and actions in a ring buffer, capacity is the number of records
+    setTrace: function(enabled, capacity) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setTrace', [!!enabled, capacity]);
+        });
+
+    },
+
+    // Android only
+    // returns [{ time: 1234567, event: 'writeRequest', device: 'AA:BB:CC:DD:EE:FF', attribute: 'ff11', requestId: 3, length: 20 }]
+    dumpTrace: function(clear) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'dumpTrace', [!!clear]);
+        });
+
+    },
+
+    // Android only
+    // same as setCharacteristicValue using the handle from addCharacteristic or createServiceFromJSON
+    setCharacteristicValueByHandle: function(handle, value) {
+
+        return new Promise(function(resolve, reject) {
+            if (value.constructor !== ArrayBuffer) {
+                reject('value must be an ArrayBuffer');
+                return;
+            }
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setCharacteristicValueByHandle', [handle, value]);
+        });
+
+    },
+
+    // Android only
+    // sets the value returned when a central reads the characteristic, subscribers are not notified
+    setCharacteristicReadValueByHandle: function(handle, value) {
+
+        return new Promise(function(resolve, reject) {
+            if (value.constructor !== ArrayBuffer) {
+                reject('value must be an ArrayBuffer');
+                return;
+            }
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setCharacteristicReadValueByHandle', [handle, value]);
+        });
+
+    },
+
+    // Android only
+    // sends the current value of the characteristic to subscribers
+    notifyCharacteristicByHandle: function(handle) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'notifyCharacteristicByHandle', [handle]);
+        });
+
+    },
+
     // setDescriptorValue: function(service, characteristic, descriptor, value) {
     // 
     //     return new Promise(function(resolve, reject) {
@@ -226,6 +644,154 @@ module.exports = {
         onWriteRequestCallback = callback;
     },
 
+    // Android only
+    // deliver write requests in batches, the callback passed to onWriteRequest
+    // is still called once for each request
+    // windowMillis: maximum time a request waits before it's delivered, 0 for no window
+    // maxRequests: deliver the batch immediately when it has this many requests, 0 for no limit
+    // batching is disabled when both are 0
+    setWriteRequestBatching: function(windowMillis, maxRequests) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setWriteRequestBatching', [windowMillis, maxRequests || 0]);
+        });
+
+    },
+
+    // Android only
+    // send write requests from native code as binary frames instead of JSON with Base64 values
+    // the callback passed to onWriteRequest gets the same objects either way
+    setBinaryWriteRequests: function(enabled) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setBinaryWriteRequests', [!!enabled]);
+        });
+
+    },
+
+    // Android only
+    // reads of characteristics enabled with setDynamicRead call the callback with
+    // { id: 1, device: 'AA:BB:CC:DD:EE:FF', service: '1234', characteristic: '5678', offset: 0 }
+    // return an ArrayBuffer or a promise for one
+    onReadRequest: function(callback) {
+        onReadRequestCallback = callback;
+        if (!readRequestCallbackRegistered) {
+            registerReadRequestCallback();
+        }
+    },
+
+    // Android only
+    // answer reads of this characteristic with the onReadRequest callback
+    // ttlMillis: serve the answer from the native cache for this long, default 0
+    // deadlineMillis: respond with the last known value if the answer takes longer, default 2000
+    setDynamicRead: function(service, characteristic, enabled, ttlMillis, deadlineMillis) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setDynamicRead', [service, characteristic, !!enabled, ttlMillis, deadlineMillis]);
+        });
+
+    },
+
+    // Android only
+    // called when a central connects or disconnects, and when its MTU or PHY changes
+    // { event: 'connected', device: 'AA:BB:CC:DD:EE:FF', status: 0, mtu: 23, txPhy: '1M', rxPhy: '1M' }
+    // event is connected, disconnected, mtuChanged or phyChanged
+    onConnectionStateChange: function(callback) {
+        onConnectionStateChangeCallback = callback;
+        if (!connectionStateCallbackRegistered) {
+            registerConnectionStateChangeCallback();
+        }
+    },
+
+    // Android 10 and later
+    // listens for L2CAP channels, options are { secure, service, characteristic }
+    // the PSM is written to the characteristic as a little endian uint16, resolves with { psm }
+    startL2capServer: function(options) {
+        options = options || {};
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'startL2capServer', [!!options.secure, options.service, options.characteristic]);
+        });
+
+    },
+
+    // Android only
+    stopL2capServer: function() {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'stopL2capServer', []);
+        });
+
+    },
+
+    // Android only
+    // callback is called with { event: 'open', channel, device, maxTransmitPacketSize, maxReceivePacketSize },
+    // { event: 'data', channel, data } and { event: 'closed', channel, device, reason }
+    // return a promise from the callback to hold back received data until it's handled
+    onL2capEvent: function(callback) {
+        onL2capEventCallback = callback;
+        if (!l2capCallbackRegistered) {
+            registerL2capCallback();
+        }
+    },
+
+    // Android only
+    // resolves with the bytes still queued for the channel once the data is written
+    // rejected if too much is already queued, wait for earlier sends before sending more
+    l2capSend: function(channel, data) {
+
+        return new Promise(function(resolve, reject) {
+            if (data.constructor !== ArrayBuffer) {
+                reject('data must be an ArrayBuffer');
+                return;
+            }
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'l2capSend', [channel, data]);
+        });
+
+    },
+
+    // Android only
+    l2capClose: function(channel) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'l2capClose', [channel]);
+        });
+
+    },
+
+    // Android only
+    // resolves with [{ channel, device, bytesSent, bytesReceived, queuedBytes, unacknowledgedBytes,
+    //   elapsed, sendBytesPerSecond, receiveBytesPerSecond }]
+    getL2capStats: function() {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'getL2capStats', []);
+        });
+
+    },
+
+    // Android only
+    // restores the GATT server after Bluetooth is turned off and on
+    // callback is called with { elapsed, services: [{ uuid, status }], advertising, l2capPsm }
+    // or { elapsed, error } if the GATT server couldn't be reopened
+    onRecovery: function(callback) {
+        onRecoveryCallback = callback;
+        if (!recoveryCallbackRegistered) {
+            registerRecoveryCallback();
+        }
+    },
+
+    // Android 8.0 and later
+    // phy is '1M', '2M' or 'coded', codedOption is 's2' or 's8' for the coded PHY
+    // device is the address of a connected central, or null for centrals that connect later
+    setPreferredPhy: function(device, phy, codedOption) {
+
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'BLEPeripheral', 'setPreferredPhy', [device || null, phy, codedOption || null]);
+        });
+
+    },
+
     onBluetoothStateChange: function(callback) {
         onBluetoothStateChangeCallback = callback;
     }